@@ -17,6 +17,7 @@
 package com.android.ddmuilib.logcat;
 
 import com.android.ddmlib.Log.LogLevel;
+import com.logcat.offline.view.ddmuilib.logcat.LogFileText;
 
 /**
  * Model a single log message output from {@code logcat -v long}.
@@ -25,6 +26,9 @@ import com.android.ddmlib.Log.LogLevel;
  * the tag and message itself.
  */
 public final class LogCatMessage {
+    /** Value of {@link #getTimestamp()} when the time of the message is not known. */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
     private final LogLevel mLogLevel;
     private final String mPid;
     private final String mTid;
@@ -32,26 +36,66 @@ public final class LogCatMessage {
     private final String mTag;
     private final String mTime;
     private final String mMessage;
+    private final long mTimestamp;
+
+    /** Where the text is in the log file when it was not decoded yet, mMessage is null then. */
+    private final LogFileText mText;
+    private final long mTextOffset;
+    private final int mTextLength;
 
     /**
      * Construct an immutable log message object.
      */
     public LogCatMessage(LogLevel logLevel, String pid, String tid, 
             String tag, String time, String msg) {
+        this(logLevel, pid, tid, tag, time, msg, NO_TIMESTAMP);
+    }
+
+    /**
+     * Construct an immutable log message object whose time is also known as a number.
+     * @param timestamp time of the message in milliseconds since the epoch
+     */
+    public LogCatMessage(LogLevel logLevel, String pid, String tid,
+            String tag, String time, String msg, long timestamp) {
+        this(logLevel, pid, tid, tag, time, msg, null, 0, 0, timestamp);
+    }
+
+    /**
+     * Construct a log message object whose text stays in the log file, it is only decoded when
+     * {@link #getMessage()} is called.
+     * @param text the log file
+     * @param offset offset of the text in the file
+     * @param length length of the text in bytes
+     */
+    public LogCatMessage(LogLevel logLevel, String pid, String tid,
+            String tag, String time, LogFileText text, long offset, int length, long timestamp) {
+        this(logLevel, pid, tid, tag, time, null, text, offset, length, timestamp);
+    }
+
+    private LogCatMessage(LogLevel logLevel, String pid, String tid, String tag, String time,
+            String msg, LogFileText text, long offset, int length, long timestamp) {
         mLogLevel = logLevel;
+        mTimestamp = timestamp;
+        mText = text;
+        mTextOffset = offset;
+        mTextLength = length;
         mPid = pid;
 //        mAppName = appName;
         mTag = tag;
         mTime = time;
         mMessage = msg;
 
-        long tidValue;
-        try {
-            // Thread id's may be in hex on some platforms.
-            // Decode and store them in radix 10.
-            tidValue = Long.decode(tid.trim());
-        } catch (NumberFormatException e) {
-            tidValue = -1;
+        long tidValue = -1;
+        String t = tid.trim();
+        // Formats without a thread id use "" or "?", don't pay for an exception on each message.
+        if (t.length() > 0 && (Character.isDigit(t.charAt(0)) || "#+-".indexOf(t.charAt(0)) != -1)) {
+            try {
+                // Thread id's may be in hex on some platforms.
+                // Decode and store them in radix 10.
+                tidValue = Long.decode(t);
+            } catch (NumberFormatException e) {
+                tidValue = -1;
+            }
         }
 
         if (tidValue == -1){
@@ -86,15 +130,42 @@ public final class LogCatMessage {
     }
 
     public String getMessage() {
+        if (mMessage == null && mText != null) {
+            return mText.getText(mTextOffset, mTextLength);
+        }
         return mMessage;
     }
 
+    /**
+     * Get the log file holding the text of the message.
+     * @return null if the text was decoded when the message was parsed.
+     */
+    public LogFileText getTextSource() {
+        return mText;
+    }
+
+    public long getTextOffset() {
+        return mTextOffset;
+    }
+
+    public int getTextLength() {
+        return mTextLength;
+    }
+
+    /**
+     * Get the time of the message in milliseconds since the epoch.
+     * @return {@link #NO_TIMESTAMP} if it is not known.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
     @Override
     public String toString() {
         return mTime + ": "
                 + mLogLevel.getPriorityLetter() + "/"
                 + mTag + "("
                 + mPid + "): "
-                + mMessage;
+                + getMessage();
     }
 }
@@ -1,9 +1,50 @@
 package com.logcat.offline;
 
+import com.logcat.offline.view.ddmuilib.logcat.LogCatMessageParser;
+
 public class Main {
 
 	public static void main(String[] args) {
+		String liveSource = null;
+		int maxLines = LogCatMessageParser.DEFAULT_LIVE_MAX_LINES;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("--stdin".equals(args[i])) {
+					liveSource = UIThread.LIVE_SOURCE_STDIN;
+				} else if ("--socket".equals(args[i]) && i + 1 < args.length) {
+					liveSource = args[++i];
+					// checks the port
+					Integer.parseInt(liveSource.substring(liveSource.lastIndexOf(':') + 1));
+				} else if ("--max-lines".equals(args[i]) && i + 1 < args.length) {
+					maxLines = Integer.parseInt(args[++i]);
+				} else {
+					usage();
+					return;
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage();
+			return;
+		}
+		if (maxLines <= 0 || (liveSource != null && liveSource.lastIndexOf(':') <= 0
+				&& !UIThread.LIVE_SOURCE_STDIN.equals(liveSource))) {
+			usage();
+			return;
+		}
+		if (liveSource != null) {
+			UIThread.getInstance().setLiveSource(liveSource, maxLines);
+		}
 		UIThread.getInstance().runUI();
         System.exit(0);
 	}
+
+	private static void usage() {
+		System.err.println("Usage: LogcatOfflineView [--stdin | --socket host:port] [--max-lines n]");
+		System.err.println("  --stdin          show the log piped to the standard input,");
+		System.err.println("                   adb logcat -v threadtime | LogcatOfflineView --stdin");
+		System.err.println("  --socket h:p     show the log served on a socket");
+		System.err.println("  --max-lines n    lines of a live log kept, default "
+				+ LogCatMessageParser.DEFAULT_LIVE_MAX_LINES);
+		System.exit(1);
+	}
 }
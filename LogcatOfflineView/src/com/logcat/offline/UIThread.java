@@ -1,6 +1,9 @@
 package com.logcat.offline;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.preference.PreferenceStore;
@@ -16,6 +19,7 @@ import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.Rectangle;
+import org.eclipse.swt.layout.FillLayout;
 import org.eclipse.swt.layout.FormAttachment;
 import org.eclipse.swt.layout.FormData;
 import org.eclipse.swt.layout.FormLayout;
@@ -35,7 +39,9 @@ import org.eclipse.swt.widgets.Shell;
 
 import com.android.ddmuilib.ITableFocusListener;
 import com.android.ddmuilib.ImageLoader;
+import com.logcat.offline.view.ddmuilib.logcat.LogCatMergedPanel;
 import com.logcat.offline.view.ddmuilib.logcat.LogCatMessageParser;
+import com.logcat.offline.view.ddmuilib.logcat.LogCatParseJob;
 import com.logcat.offline.view.ddmuilib.logcat.LogCatPanel;
 import com.logcat.offline.view.ddmuilib.logcat.OfflinePreferenceStore;
 
@@ -52,8 +58,25 @@ public class UIThread {
 	public static final int PANEL_ID_EVENTS = 1;
 	public static final int PANEL_ID_RADIO = 2;
 	
+	/** Interval between two updates of the parsing progress in the status line, in ms. */
+	private static final int PROGRESS_UPDATE_INTERVAL = 200;
+	
+	/** Live source for the standard input, see {@link #setLiveSource(String, int)}. */
+	public static final String LIVE_SOURCE_STDIN = "-";
+	
 	private Display mDisplay;
 	private Label mStatusLine;
+	private MenuItem mStopParsingMenuItem;
+	private MenuItem mFollowMenuItem;
+	private MenuItem mAllBuffersMenuItem;
+	/** Window of the main, events and radio buffers merged by time, null when it is closed. */
+	private Shell mAllBuffersShell;
+	/** The last parse jobs started, their result stays in the status line when they are done. */
+	private List<LogCatParseJob> mLastParseJobs = new ArrayList<LogCatParseJob>();
+	private boolean mShowingProgress;
+	/** Live log shown in the main panel once the window is up, null if there is none. */
+	private String mLiveSource;
+	private int mLiveMaxLines = LogCatMessageParser.DEFAULT_LIVE_MAX_LINES;
 	
 	private PreferenceStore mPreferenceStore;
 	private LogCatPanel mLogCatPanel_main;
@@ -133,6 +156,17 @@ public class UIThread {
         }
     }
 	
+	/**
+	 * Show a live log in the main panel when the window opens.
+	 * @param source {@link #LIVE_SOURCE_STDIN} for the standard input, or the "host:port" of a
+	 * socket serving the log
+	 * @param maxLines number of lines kept, the oldest ones are dropped past it
+	 */
+	public void setLiveSource(String source, int maxLines) {
+		mLiveSource = source;
+		mLiveMaxLines = maxLines;
+	}
+	
 	public void runUI() {
         Display.setAppName(APP_NAME);
         mDisplay = Display.getDefault();
@@ -142,6 +176,7 @@ public class UIThread {
         mPreferenceStore = OfflinePreferenceStore.getPreferenceStore();
         createMenus(shell);
         createWidgets(shell);
+        startLiveSource();
         shell.pack();
         shell.setMaximized(true);
         shell.open();
@@ -163,6 +198,8 @@ public class UIThread {
         fileItem.setText("&File");
         MenuItem editItem = new MenuItem(menuBar, SWT.CASCADE);
         editItem.setText("&Edit");
+        MenuItem viewItem = new MenuItem(menuBar, SWT.CASCADE);
+        viewItem.setText("&View");
         MenuItem aboutItem = new MenuItem(menuBar, SWT.CASCADE);
         aboutItem.setText("&Help");
         
@@ -170,6 +207,8 @@ public class UIThread {
         fileItem.setMenu(fileMenu);
         Menu editMenu = new Menu(menuBar);
         editItem.setMenu(editMenu);
+        Menu viewMenu = new Menu(menuBar);
+        viewItem.setMenu(viewMenu);
         Menu aboutMenu = new Menu(menuBar);
         aboutItem.setMenu(aboutMenu);
 
@@ -182,7 +221,8 @@ public class UIThread {
             @Override
             public void widgetSelected(SelectionEvent e) {
                 String filePath = new FileDialog(shell).open();
-                LogCatMessageParser.getInstance().parseLogFile(filePath, PANEL_ID_MAIN);
+                showProgress(LogCatMessageParser.getInstance().parseLogFile(filePath, PANEL_ID_MAIN,
+                        mFollowMenuItem.getSelection()));
             }
         });
         
@@ -194,7 +234,7 @@ public class UIThread {
             @Override
             public void widgetSelected(SelectionEvent e) {
                 String filePath = new FileDialog(shell).open();
-                LogCatMessageParser.getInstance().parseDumpstateFile(filePath);
+                showProgress(LogCatMessageParser.getInstance().parseDumpstateFile(filePath));
             }
         });
         
@@ -212,8 +252,8 @@ public class UIThread {
 				}
 				String folderPath = directoryDialog.open();
 				if (folderPath != null) {
-					LogCatMessageParser.getInstance()
-							.parseLogFolder(folderPath);
+					showProgress(LogCatMessageParser.getInstance()
+							.parseLogFolder(folderPath, mFollowMenuItem.getSelection()));
 					if (lastFolder != null
 							&& folderPath.compareTo(lastFolder) != 0) {
 						mPreferenceStore.setValue(PREFERENCE_LAST_OPEN_FOLDER,
@@ -223,6 +263,34 @@ public class UIThread {
 			}
         });
         
+        // a file of a rotated set, all its segments are merged by time
+        item = new MenuItem(fileMenu, SWT.NONE);
+        item.setText("Open &Rotated Log Files\tCtrl-R");
+        item.setAccelerator('R' | SWT.MOD1);
+        item.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                String filePath = new FileDialog(shell).open();
+                showProgress(LogCatMessageParser.getInstance().parseRotatedLog(filePath, PANEL_ID_MAIN));
+            }
+        });
+        
+        new MenuItem(fileMenu, SWT.SEPARATOR);
+        
+        // files opened while it is checked are watched, and what is appended to them is shown
+        mFollowMenuItem = new MenuItem(fileMenu, SWT.CHECK);
+        mFollowMenuItem.setText("Fo&llow File Changes");
+        
+        mStopParsingMenuItem = new MenuItem(fileMenu, SWT.NONE);
+        mStopParsingMenuItem.setText("&Stop Parsing");
+        mStopParsingMenuItem.setEnabled(false);
+        mStopParsingMenuItem.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                LogCatMessageParser.getInstance().cancelAllJobs();
+            }
+        });
+        
         new MenuItem(fileMenu, SWT.SEPARATOR);
         
         item = new MenuItem(fileMenu, SWT.NONE);
@@ -278,6 +346,18 @@ public class UIThread {
                 mTableListener.next();
             }
         });
+        
+        // create view menu items
+        mAllBuffersMenuItem = new MenuItem(viewMenu, SWT.CHECK);
+        mAllBuffersMenuItem.setText("&All Buffers\tCtrl-M");
+        mAllBuffersMenuItem.setAccelerator('M' | SWT.MOD1);
+        mAllBuffersMenuItem.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                showAllBuffers(shell, mAllBuffersMenuItem.getSelection());
+            }
+        });
+        
         item = new MenuItem(aboutMenu, SWT.NONE);
         item.setText("&Discuss-group");
         item.addSelectionListener(new SelectionAdapter(){
@@ -435,6 +515,132 @@ public class UIThread {
         mStatusLine.setText("");
     }
 	
+	private void showAllBuffers(Shell parent, boolean show) {
+		if (!show) {
+			if (mAllBuffersShell != null) {
+				mAllBuffersShell.close();
+			}
+			return;
+		}
+		if (mAllBuffersShell != null) {
+			return;
+		}
+		mAllBuffersShell = new Shell(parent, SWT.SHELL_TRIM);
+		mAllBuffersShell.setText("All buffers");
+		mAllBuffersShell.setLayout(new FillLayout());
+		new LogCatMergedPanel(mPreferenceStore, new String[] { "main", "events", "radio" },
+				mLogCatPanel_main, mLogCatPanel_event, mLogCatPanel_radio)
+				.createControl(mAllBuffersShell);
+		mAllBuffersShell.addListener(SWT.Dispose, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				mAllBuffersShell = null;
+				if (!mAllBuffersMenuItem.isDisposed()) {
+					mAllBuffersMenuItem.setSelection(false);
+				}
+			}
+		});
+		Rectangle bounds = parent.getBounds();
+		mAllBuffersShell.setBounds(bounds.x + bounds.width / 8, bounds.y + bounds.height / 8,
+				bounds.width * 3 / 4, bounds.height * 3 / 4);
+		mAllBuffersShell.open();
+	}
+	
+	private void startLiveSource() {
+		if (mLiveSource == null) {
+			return;
+		}
+		LogCatMessageParser parser = LogCatMessageParser.getInstance();
+		if (LIVE_SOURCE_STDIN.equals(mLiveSource)) {
+			showProgress(parser.parseLiveStream(System.in, "stdin", PANEL_ID_MAIN, mLiveMaxLines));
+		} else {
+			int colon = mLiveSource.lastIndexOf(':');
+			showProgress(parser.parseLiveSocket(mLiveSource.substring(0, colon),
+					Integer.parseInt(mLiveSource.substring(colon + 1)), PANEL_ID_MAIN, mLiveMaxLines));
+		}
+	}
+	
+	private void showProgress(LogCatParseJob job) {
+		if (job != null) {
+			showProgress(Collections.singletonList(job));
+		}
+	}
+
+	/**
+	 * Show the progress of parse jobs in the status line, until they and the other jobs running
+	 * are done.
+	 */
+	private void showProgress(List<LogCatParseJob> jobs) {
+		if (jobs.isEmpty()) {
+			return;
+		}
+		mLastParseJobs = jobs;
+		mStopParsingMenuItem.setEnabled(true);
+		if (!mShowingProgress) {
+			mShowingProgress = true;
+			mDisplay.timerExec(PROGRESS_UPDATE_INTERVAL, mProgressUpdater);
+		}
+	}
+
+	private final Runnable mProgressUpdater = new Runnable() {
+		@Override
+		public void run() {
+			if (mStatusLine.isDisposed()) {
+				return;
+			}
+			List<LogCatParseJob> jobs = LogCatMessageParser.getInstance().getRunningJobs();
+			if (jobs.isEmpty()) {
+				mShowingProgress = false;
+				mStopParsingMenuItem.setEnabled(false);
+				StringBuilder sb = new StringBuilder();
+				for (LogCatParseJob job : mLastParseJobs) {
+					if (sb.length() > 0) {
+						sb.append("    ");
+					}
+					sb.append(getJobResult(job));
+				}
+				mStatusLine.setText(sb.toString());
+				return;
+			}
+			StringBuilder sb = new StringBuilder();
+			for (LogCatParseJob job : jobs) {
+				if (sb.length() > 0) {
+					sb.append("    ");
+				}
+				if (job.isFollowing()) {
+					sb.append(String.format("Following %s: %,d messages",
+							job.getFile().getName(), job.getMessageCount()));
+					continue;
+				}
+				if (job.getFileSize() < 0) {
+					// a zip entry of unknown size
+					sb.append(String.format("Parsing %s: %,d messages",
+							job.getFile().getName(), job.getMessageCount()));
+					continue;
+				}
+				sb.append(String.format("Parsing %s: %,d of %,d MB, %,d messages",
+						job.getFile().getName(), job.getBytesRead() >> 20,
+						job.getFileSize() >> 20, job.getMessageCount()));
+			}
+			mStatusLine.setText(sb.toString());
+			mDisplay.timerExec(PROGRESS_UPDATE_INTERVAL, this);
+		}
+	};
+
+	private static String getJobResult(LogCatParseJob job) {
+		if (job.isCancelled()) {
+			return String.format("%s: stopped after %,d messages", job.getFile().getName(),
+					job.getMessageCount());
+		}
+		String result = String.format("%s: %,d messages in %.1f s", job.getFile().getName(),
+				job.getMessageCount(), job.getElapsedTime() / 1000.0);
+		if (!job.getCrashReports().isEmpty()) {
+			result += String.format(", %d ANR traces and tombstones in the archive",
+					job.getCrashReports().size());
+		}
+		return result;
+	}
+
 	private void createMainPanel(Composite parent) {
         mLogCatPanel_main = new LogCatPanel(mPreferenceStore, PANEL_ID_MAIN, "main buffer");
         mLogCatPanel_main.createControl(parent);
@@ -470,7 +676,8 @@ public class UIThread {
                 if (fileTransfer.isSupportedType(event.currentDataType)) {
                     String[] files = (String[]) event.data;
                     for (int i = 0; i < files.length; i++) {
-                        LogCatMessageParser.getInstance().parseLogFile(files[i], panelIdMain);
+                        showProgress(LogCatMessageParser.getInstance().parseLogFile(files[i], panelIdMain,
+                                mFollowMenuItem.getSelection()));
                         break;
                     }
                 }
@@ -23,9 +23,21 @@ import com.android.ddmuilib.logcat.LogCatMessage;
 
 /**
  * Listeners interested in log cat messages should implement this interface.
+ * Files are parsed in the background, the methods are called from the thread
+ * parsing the file.
  */
 public interface ILogCatMessageEventListener {
-    /** Called on reception of logcat messages.
+    /** Called when a new log file starts being parsed for a panel, before its first
+     * batch of messages is delivered. Messages previously received for that panel
+     * belong to the old file and should be dropped.
+     * @param store the store the messages of the file are appended to. It may already
+     * hold all of them when the file was loaded from its index.
+     */
+    void logFileOpened(int panelID, File Path, LogStore store);
+
+    /** Called on reception of logcat messages. A file is delivered as a sequence of
+     * batches in file order; each batch has already been appended to the store given
+     * to {@link #logFileOpened(int, File, LogStore)} when this is called.
      * @param receivedMessages list of messages received
      */
     void messageReceived(List<LogCatMessage> receivedMessages, int panelID, File Path);
@@ -2,5 +2,9 @@ package com.logcat.offline.view.ddmuilib.logcat;
 
 public interface ILogCatSyncListener {
     
-    void synSelected(String synTime);
+    /**
+     * Select the message closest to the given time.
+     * @param timestamp time in milliseconds since the epoch, as from {@link LogStore#getTimestamp(int)}
+     */
+    void synSelected(long timestamp);
 }
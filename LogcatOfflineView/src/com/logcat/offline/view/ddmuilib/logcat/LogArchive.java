@@ -0,0 +1,278 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A log read from a compressed file: a gzip'd log, or a zip archive such as the one
+ * {@code adb bugreport} writes. The log is decompressed while it is read and handed out in
+ * chunks of whole lines, nothing is extracted to disk.
+ * <p/>
+ * Zip archives are looked up in their central directory: the log is the main bugreport entry
+ * ({@code bugreport-*.txt} or {@code dumpstate*.txt}) when there is one, else the biggest entry.
+ * The ANR traces and tombstones the archive holds are found the same way, by their name.
+ */
+final class LogArchive {
+    private static final int GZIP_MAGIC = 0x1f8b;
+    private static final int ZIP_MAGIC = 0x504b0304; // PK\3\4
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream mIn;
+    private final CountingInputStream mCounter;
+    private final ZipFile mZip;
+    private final String mName;
+    private final long mSize;
+    private final List<String> mCrashReports;
+
+    private byte[] mCarry = new byte[0];
+    private int mCarryLength;
+    private byte[] mLastChunk;
+    private int mLastChunkLength;
+    private boolean mEndOfStream;
+
+    private LogArchive(InputStream in, CountingInputStream counter, ZipFile zip, String name,
+            long size, List<String> crashReports) {
+        mIn = in;
+        mCounter = counter;
+        mZip = zip;
+        mName = name;
+        mSize = size;
+        mCrashReports = crashReports;
+    }
+
+    /**
+     * Open the log of a compressed file.
+     * @return null if the file is not compressed, it is then read as it is.
+     * @throws IOException if the file can't be read, or if it is a zip archive without entries.
+     */
+    public static LogArchive open(File file) throws IOException {
+        int magic = readMagic(file);
+        if ((magic >>> 16) == GZIP_MAGIC) {
+            CountingInputStream in = new CountingInputStream(new FileInputStream(file));
+            try {
+                // the progress is measured on the compressed bytes, against the size of the file
+                return new LogArchive(new GZIPInputStream(in, GZIP_BUFFER_SIZE), in, null,
+                        file.getName(), file.length(), Collections.<String>emptyList());
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+        if (magic == ZIP_MAGIC) {
+            ZipFile zip = new ZipFile(file);
+            ZipEntry entry = findLogEntry(zip);
+            if (entry == null) {
+                zip.close();
+                throw new IOException("No log in " + file);
+            }
+            CountingInputStream in = new CountingInputStream(zip.getInputStream(entry));
+            return new LogArchive(in, in, zip, entry.getName(), entry.getSize(),
+                    findCrashReports(zip));
+        }
+        return null;
+    }
+
+    private static int readMagic(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt();
+        } catch (EOFException e) {
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Find the bugreport in a zip, or the biggest entry if there is none. */
+    private static ZipEntry findLogEntry(ZipFile zip) {
+        ZipEntry bugreport = null;
+        ZipEntry biggest = null;
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+            String name = entry.getName();
+            if (name.indexOf('/') == -1 && name.endsWith(".txt")
+                    && (name.startsWith("bugreport") || name.startsWith("dumpstate"))) {
+                if (bugreport == null || entry.getSize() > bugreport.getSize()) {
+                    bugreport = entry;
+                }
+            }
+            if (biggest == null || entry.getSize() > biggest.getSize()) {
+                biggest = entry;
+            }
+        }
+        return bugreport != null ? bugreport : biggest;
+    }
+
+    /** Get the names of the ANR traces and tombstones of a bugreport zip. */
+    private static List<String> findCrashReports(ZipFile zip) {
+        List<String> names = new ArrayList<String>();
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (!entry.isDirectory() && (name.startsWith("FS/data/anr/")
+                    || name.startsWith("FS/data/tombstones/"))) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /** Name of the log: the file for a gzip'd log, the entry for a zip archive. */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Number of bytes to read, to compare with {@link #getPosition()}: the size of the gzip'd
+     * file, or the uncompressed size of the zip entry, -1 if it is unknown.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /** Number of bytes read so far, the same kind of bytes as {@link #getSize()}. */
+    public long getPosition() {
+        return mCounter.getCount();
+    }
+
+    /** Names of the ANR traces and tombstones in a bugreport zip, in the order of the archive. */
+    public List<String> getCrashReports() {
+        return mCrashReports;
+    }
+
+    /**
+     * Read the next chunk of the log. It ends after the end of a line, and starts with the lines
+     * the previous chunk gave back with {@link #pushBack(int)}.
+     * @param size number of bytes to read, the chunk is bigger when a line does not fit
+     * @return the chunk, from index 0 to its limit, or null at the end of the log.
+     */
+    public ByteBuffer nextChunk(int size) throws IOException {
+        if (mEndOfStream && mCarryLength == 0) {
+            return null;
+        }
+        byte[] chunk = new byte[mCarryLength + size];
+        System.arraycopy(mCarry, 0, chunk, 0, mCarryLength);
+        int length = mCarryLength;
+        int end;
+        while (true) {
+            while (!mEndOfStream && length < chunk.length) {
+                int n = mIn.read(chunk, length, chunk.length - length);
+                if (n < 0) {
+                    mEndOfStream = true;
+                } else {
+                    length += n;
+                }
+            }
+            if (mEndOfStream) {
+                end = length;
+                break;
+            }
+            // keep the last line, not complete yet, for the next chunk
+            end = length;
+            while (end > 0 && chunk[end - 1] != '\n' && chunk[end - 1] != '\r') {
+                end--;
+            }
+            if (end > 0) {
+                break;
+            }
+            // a line longer than the chunk, read on until its end
+            byte[] bigger = new byte[chunk.length * 2];
+            System.arraycopy(chunk, 0, bigger, 0, length);
+            chunk = bigger;
+        }
+        mCarryLength = length - end;
+        if (mCarry.length < mCarryLength) {
+            mCarry = new byte[mCarryLength];
+        }
+        System.arraycopy(chunk, end, mCarry, 0, mCarryLength);
+        mLastChunk = chunk;
+        mLastChunkLength = end;
+        return ByteBuffer.wrap(chunk, 0, end).slice();
+    }
+
+    /** Whether the whole log has been read, the bytes given back aside. */
+    public boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    /**
+     * Give back the last bytes of the chunk just read, they start the next chunk. Used when the
+     * chunk ends in the middle of a message that spans several lines.
+     */
+    public void pushBack(int length) {
+        byte[] carry = new byte[length + mCarryLength];
+        System.arraycopy(mLastChunk, mLastChunkLength - length, carry, 0, length);
+        System.arraycopy(mCarry, 0, carry, length, mCarryLength);
+        mCarry = carry;
+        mCarryLength += length;
+        mLastChunkLength -= length;
+    }
+
+    public void close() {
+        try {
+            mIn.close();
+            if (mZip != null) {
+                mZip.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Counts the bytes read through it. */
+    private static final class CountingInputStream extends FilterInputStream {
+        private volatile long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
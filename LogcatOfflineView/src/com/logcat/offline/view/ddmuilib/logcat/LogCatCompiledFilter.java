@@ -0,0 +1,505 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.android.ddmlib.Log.LogLevel;
+
+/**
+ * Several {@link LogCatFilter}s a row must all match, the saved filter and the live filters of a
+ * {@link LogCatPanel}, checked on the columns of a {@link LogStore} in a single pass.
+ * <p/>
+ * The conditions of all the filters are folded together: the levels into one table, the
+ * conditions on the tag and on the pid into one result per tag and per pid, worked out the first
+ * time a row has them. {@link #select(LogStore, int, int)} turns them into operations on the
+ * {@link RowBitmap}s of the store and on the candidates of its {@link TextIndex}, and only reads
+ * the time and the text of the rows left, once for all the text regexes.
+ * <p/>
+ * A compiled filter keeps the results it worked out for the store it last checked, and the
+ * matchers of its regexes: it must only be used by one thread at a time. Another thread may
+ * {@link #cancel()} it while it selects rows.
+ * <p/>
+ * The rows several compiled filters match are counted with
+ * {@link #count(List, LogStore, int, int)}, in one pass over the rows for all of them.
+ */
+public final class LogCatCompiledFilter {
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    private static final byte UNKNOWN = 0;
+    private static final byte MATCH = 1;
+    private static final byte NO_MATCH = 2;
+
+    /** Rows counted by a thread at least, fewer are not worth another thread. */
+    private static final int COUNT_CHUNK_ROWS = 64 * 1024;
+
+    private static final int COUNT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sCountExecutor;
+
+    private final List<LogCatFilter> mFilters;
+    /** Whether a level, by ordinal, passes all the filters. */
+    private final boolean[] mLevels = new boolean[LEVELS.length];
+    private final boolean mCheckLevel;
+    private final List<LogCatFilter> mTagFilters = new ArrayList<LogCatFilter>();
+    private final List<LogCatFilter> mPidFilters = new ArrayList<LogCatFilter>();
+    private final List<LogCatFilter> mTimeFilters = new ArrayList<LogCatFilter>();
+    private final Matcher[] mTextMatchers;
+    /** Strings the text of a row must contain to match the text regexes. */
+    private final List<String> mTextLiterals = new ArrayList<String>();
+
+    /** Store the results below are for. */
+    private LogStore mStore;
+    /** Result of the tag conditions, by tag id. */
+    private byte[] mTagResults = new byte[0];
+    /** Result of the pid conditions, by pid id, and the last one asked for. */
+    private final HashMap<Integer, Boolean> mPidResults = new HashMap<Integer, Boolean>();
+    private int mLastPid;
+    private boolean mLastPidResult;
+    private boolean mHasLastPid;
+
+    private volatile boolean mCancelled;
+
+    /** Rows of a store that matched, up to a size of the store, kept to be shown again at once. */
+    private LogStore mResultStore;
+    private RowBitmap mResult;
+    private int mResultSize;
+
+    private LogCatCompiledFilter(List<LogCatFilter> filters) {
+        mFilters = new ArrayList<LogCatFilter>(filters);
+        boolean checkLevel = false;
+        List<Matcher> textMatchers = new ArrayList<Matcher>();
+        for (int i = 0; i < LEVELS.length; i++) {
+            mLevels[i] = true;
+        }
+        for (LogCatFilter f : mFilters) {
+            for (int i = 0; i < LEVELS.length; i++) {
+                if (LEVELS[i].getPriority() < f.getLogLevel().getPriority()) {
+                    mLevels[i] = false;
+                    checkLevel = true;
+                }
+            }
+            if (f.checksTag()) {
+                mTagFilters.add(f);
+            }
+            if (f.checksPid()) {
+                mPidFilters.add(f);
+            }
+            if (f.checksTime()) {
+                mTimeFilters.add(f);
+            }
+            Pattern text = f.getTextPattern();
+            if (text != null) {
+                textMatchers.add(text.matcher(""));
+                mTextLiterals.addAll(TextIndex.getLiterals(text.pattern()));
+            }
+        }
+        mCheckLevel = checkLevel;
+        mTextMatchers = textMatchers.toArray(new Matcher[textMatchers.size()]);
+    }
+
+    /**
+     * Compile filters into one.
+     * @param filters filters a row must all match
+     */
+    public static LogCatCompiledFilter compile(List<LogCatFilter> filters) {
+        return new LogCatCompiledFilter(filters);
+    }
+
+    /**
+     * Stop selecting rows, {@link #select(LogStore, int, int)} and
+     * {@link #refine(LogStore, int[], int, int)} then throw a {@link CancellationException}.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /** Whether {@link #cancel()} was called, the filter must then be compiled again to be used. */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private void checkCancelled() {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Keep the rows of a store this filter matched, for when it is applied to the store again.
+     * @param rows the rows that matched
+     * @param size the size of the store when they were selected, the rows after were not looked at
+     */
+    void setResult(LogStore store, RowBitmap rows, int size) {
+        mResultStore = store;
+        mResult = rows;
+        mResultSize = size;
+    }
+
+    /** The rows of a store kept by {@link #setResult(LogStore, RowBitmap, int)}, null if none. */
+    RowBitmap getResult(LogStore store) {
+        return store == mResultStore ? mResult : null;
+    }
+
+    /** Size of the store when the rows of {@link #getResult(LogStore)} were selected. */
+    int getResultSize() {
+        return mResultSize;
+    }
+
+    /** Drop the results worked out for the store last checked, and the rows kept for it. */
+    void releaseStore() {
+        setStore(null);
+        setResult(null, null, 0);
+    }
+
+    /** The filters this one was compiled from. */
+    public List<LogCatFilter> getFilters() {
+        return mFilters;
+    }
+
+    /**
+     * Find the rows of a store that match all the filters.
+     * @param from first row to look at
+     * @param to row to stop at, at most the size of the store
+     * @return the rows that match, in order.
+     * @throws CancellationException if the filter is cancelled meanwhile.
+     */
+    public int[] select(LogStore store, int from, int to) {
+        return select(store, from, to, null);
+    }
+
+    /**
+     * Whether this filter is narrower than another one: the rows it matches are among the rows
+     * the other one matches, as when more is typed in the live filter.
+     */
+    public boolean narrows(LogCatCompiledFilter other) {
+        for (LogCatFilter f : other.mFilters) {
+            boolean narrowed = false;
+            for (LogCatFilter g : mFilters) {
+                if (g.narrows(f)) {
+                    narrowed = true;
+                    break;
+                }
+            }
+            if (!narrowed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the rows that match among the rows another filter matched, when this one narrows it.
+     * @param rows rows of a store, in order
+     * @param start index of the first row to look at
+     * @param end index after the last one
+     * @return the rows that match, in order.
+     * @throws CancellationException if the filter is cancelled meanwhile.
+     */
+    public int[] refine(LogStore store, int[] rows, int start, int end) {
+        if (start >= end) {
+            return new int[0];
+        }
+        RowBitmap within = new RowBitmap();
+        for (int i = start; i < end; i++) {
+            within.add(rows[i]);
+        }
+        return select(store, rows[start], rows[end - 1] + 1, within);
+    }
+
+    /** @param within the only rows to look at, null for all of them */
+    private int[] select(LogStore store, int from, int to, RowBitmap within) {
+        checkCancelled();
+        setStore(store);
+        from = Math.max(from, store.getFirstRow());
+        if (from >= to) {
+            return new int[0];
+        }
+        RowBitmap rows = within;
+        if (mCheckLevel) {
+            RowBitmap levels = store.getLevelRows(mLevels, from, to);
+            rows = rows == null ? levels : rows.and(levels);
+        }
+        if (!mTagFilters.isEmpty()) {
+            int[] tagIds = new int[store.getTagCount()];
+            for (int i = 0; i < tagIds.length; i++) {
+                tagIds[i] = i;
+            }
+            rows = narrow(rows, store, tagIds, true, from, to);
+        }
+        if (!mPidFilters.isEmpty()) {
+            rows = narrow(rows, store, store.getPidIds(), false, from, to);
+        }
+        checkCancelled();
+        if (!mTextLiterals.isEmpty()) {
+            // only the rows whose text has the trigrams of the literals of the regexes
+            TextIndex index = store.indexText();
+            RowBitmap candidates = index != null ? index.getCandidateRows(mTextLiterals, from, to) : null;
+            if (candidates != null) {
+                rows = rows == null ? candidates : rows.and(candidates);
+            }
+        }
+
+        checkCancelled();
+        int[] result;
+        int count;
+        if (rows != null) {
+            result = rows.toArray(from, to);
+            count = result.length;
+        } else {
+            result = new int[to - from];
+            count = result.length;
+            for (int i = 0; i < count; i++) {
+                result[i] = from + i;
+            }
+        }
+        if (mTimeFilters.isEmpty() && mTextMatchers.length == 0) {
+            return result;
+        }
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if ((i & 4095) == 0) {
+                checkCancelled();
+            }
+            if (matchesTimeAndText(store, result[i])) {
+                result[n++] = result[i];
+            }
+        }
+        return n == count ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Narrow rows to the ones whose tag or pid matches the filters.
+     * @param rows rows so far, null for all of them
+     * @param ids ids of all the tags or pids of the rows
+     * @param tags whether the ids are tag ids or pid ids
+     */
+    private RowBitmap narrow(RowBitmap rows, LogStore store, int[] ids, boolean tags, int from,
+            int to) {
+        // the ids that match first, the others after them
+        int[] sorted = new int[ids.length];
+        int m = 0;
+        int o = ids.length;
+        for (int id : ids) {
+            if (tags ? matchesTag(store, id) : matchesPid(store, id)) {
+                sorted[m++] = id;
+            } else {
+                sorted[--o] = id;
+            }
+        }
+        // take the union of the fewer bitmaps: the rows with a matching id, or the others
+        boolean with = m <= ids.length - m;
+        int[] union = with ? Arrays.copyOf(sorted, m) : Arrays.copyOfRange(sorted, m, ids.length);
+        RowBitmap b = tags ? store.getTagRows(union, from, to) : store.getPidRows(union, from, to);
+        if (with) {
+            return rows == null ? b : rows.and(b);
+        }
+        return (rows == null ? RowBitmap.range(from, to) : rows).andNot(b);
+    }
+
+    private static synchronized ExecutorService getCountExecutor() {
+        if (sCountExecutor == null) {
+            sCountExecutor = Executors.newFixedThreadPool(COUNT_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "LogCat filter counter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sCountExecutor;
+    }
+
+    /**
+     * Count the rows each of several filters matches, as the unread counts of the saved filters.
+     * Each row is read once for all the filters: its level, tag, pid and text are only looked up
+     * once. Many rows are split in chunks counted in parallel, by copies of the filters.
+     * @param from first row to look at
+     * @param to row to stop at, at most the size of the store
+     * @return the number of rows each filter matches.
+     */
+    public static int[] count(List<LogCatCompiledFilter> filters, final LogStore store, int from,
+            int to) {
+        from = Math.max(from, store.getFirstRow());
+        int chunks = Math.min(COUNT_THREADS, (to - from) / COUNT_CHUNK_ROWS);
+        if (chunks <= 1 || filters.isEmpty()) {
+            return countRows(filters, store, from, to);
+        }
+
+        List<Future<int[]>> futures = new ArrayList<Future<int[]>>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int start = from + (int) ((long) (to - from) * i / chunks);
+            final int end = from + (int) ((long) (to - from) * (i + 1) / chunks);
+            // the filters keep results and matchers of their own, each chunk needs copies
+            final List<LogCatCompiledFilter> copies =
+                    new ArrayList<LogCatCompiledFilter>(filters.size());
+            for (LogCatCompiledFilter f : filters) {
+                copies.add(compile(f.mFilters));
+            }
+            futures.add(getCountExecutor().submit(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return countRows(copies, store, start, end);
+                }
+            }));
+        }
+        int[] counts = new int[filters.size()];
+        try {
+            for (Future<int[]> future : futures) {
+                int[] c = future.get();
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += c[i];
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+        return counts;
+    }
+
+    private static int[] countRows(List<LogCatCompiledFilter> filters, LogStore store, int from,
+            int to) {
+        LogCatCompiledFilter[] f = filters.toArray(new LogCatCompiledFilter[filters.size()]);
+        for (LogCatCompiledFilter filter : f) {
+            filter.setStore(store);
+        }
+        int[] counts = new int[f.length];
+        for (int row = from; row < to; row++) {
+            int level = store.getLogLevel(row).ordinal();
+            int tagId = store.getTagId(row);
+            int pidId = store.getPidId(row);
+            String text = null;
+            for (int i = 0; i < f.length; i++) {
+                LogCatCompiledFilter filter = f[i];
+                if (filter.mCheckLevel && !filter.mLevels[level]) {
+                    continue;
+                }
+                if (!filter.mTagFilters.isEmpty() && !filter.matchesTag(store, tagId)) {
+                    continue;
+                }
+                if (!filter.mPidFilters.isEmpty() && !filter.matchesPid(store, pidId)) {
+                    continue;
+                }
+                if (!filter.mTimeFilters.isEmpty()
+                        && !filter.matchesTime(store.getTimestamp(row))) {
+                    continue;
+                }
+                if (filter.mTextMatchers.length != 0) {
+                    if (text == null) {
+                        text = store.getMessage(row);
+                    }
+                    if (!filter.matchesText(text)) {
+                        continue;
+                    }
+                }
+                counts[i]++;
+            }
+        }
+        return counts;
+    }
+
+    /** Whether a row of a store matches all the filters. */
+    public boolean matches(LogStore store, int row) {
+        setStore(store);
+        if (mCheckLevel && !mLevels[store.getLogLevel(row).ordinal()]) {
+            return false;
+        }
+        if (!mTagFilters.isEmpty() && !matchesTag(store, store.getTagId(row))) {
+            return false;
+        }
+        if (!mPidFilters.isEmpty() && !matchesPid(store, store.getPidId(row))) {
+            return false;
+        }
+        return matchesTimeAndText(store, row);
+    }
+
+    private void setStore(LogStore store) {
+        if (store != mStore) {
+            mStore = store;
+            mTagResults = new byte[0];
+            mPidResults.clear();
+            mHasLastPid = false;
+        }
+    }
+
+    private boolean matchesTimeAndText(LogStore store, int row) {
+        if (!mTimeFilters.isEmpty() && !matchesTime(store.getTimestamp(row))) {
+            return false;
+        }
+        return mTextMatchers.length == 0 || matchesText(store.getMessage(row));
+    }
+
+    private boolean matchesTime(long timestamp) {
+        for (LogCatFilter f : mTimeFilters) {
+            if (!f.matchesTime(timestamp)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesText(String text) {
+        for (Matcher m : mTextMatchers) {
+            if (!m.reset(text).find()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesTag(LogStore store, int tagId) {
+        if (tagId >= mTagResults.length) {
+            mTagResults = Arrays.copyOf(mTagResults, Math.max(tagId + 1, store.getTagCount()));
+        }
+        byte result = mTagResults[tagId];
+        if (result == UNKNOWN) {
+            String tag = store.getTagById(tagId);
+            result = MATCH;
+            for (LogCatFilter f : mTagFilters) {
+                if (!f.matchesTag(tag)) {
+                    result = NO_MATCH;
+                    break;
+                }
+            }
+            mTagResults[tagId] = result;
+        }
+        return result == MATCH;
+    }
+
+    private boolean matchesPid(LogStore store, int pidId) {
+        // rows of a process mostly come together
+        if (mHasLastPid && pidId == mLastPid) {
+            return mLastPidResult;
+        }
+        Boolean result = mPidResults.get(pidId);
+        if (result == null) {
+            String pid = store.getPidById(pidId);
+            result = Boolean.TRUE;
+            for (LogCatFilter f : mPidFilters) {
+                if (!f.matchesPid(pid)) {
+                    result = Boolean.FALSE;
+                    break;
+                }
+            }
+            mPidResults.put(pidId, result);
+        }
+        mLastPid = pidId;
+        mLastPidResult = result;
+        mHasLastPid = true;
+        return result;
+    }
+}
@@ -71,6 +71,9 @@ public final class LogCatFilter {
     private boolean mCheckShowTag;
     private List<String> mPIDList;
     private List<String> mTagList;
+    private boolean mCheckTime;
+    private long mTimeFrom;
+    private long mTimeTo;
 
 //    private Pattern mAppNamePattern;
     private Pattern mTagPattern;
@@ -172,10 +175,12 @@ public final class LogCatFilter {
      * with a keyword corresponding to the field name. Currently, the following keywords are
      * supported: "pid:", "tag:" and "text:". Invalid regexes are ignored.
      * @param minLevel minimum log level to match
+     * @param timeFrom earliest time stamp to match, Long.MIN_VALUE for no limit
+     * @param timeTo latest time stamp to match, Long.MAX_VALUE for no limit
      * @return list of filter settings that fully match the given query
      */
     public static List<LogCatFilter> fromString(String query, LogLevel minLevel,
-    		List<String> pidList, List<String> tagList) {
+    		List<String> pidList, List<String> tagList, long timeFrom, long timeTo) {
         List<LogCatFilter> filterSettings = new ArrayList<LogCatFilter>();
 
         for (String s : query.trim().split(" ")) {
@@ -204,6 +209,7 @@ public final class LogCatFilter {
                     tag, text, pid, tid, minLevel, new ArrayList<String>(), new ArrayList<String>());
             logCatFilter.setmPIDList(pidList);
             logCatFilter.setmTagList(tagList);
+            logCatFilter.setTimeRange(timeFrom, timeTo);
             filterSettings.add(logCatFilter);
         }
 
@@ -245,6 +251,12 @@ public final class LogCatFilter {
 		this.mTagList = mTagList;
 	}
 
+	private void setTimeRange(long timeFrom, long timeTo) {
+		mTimeFrom = timeFrom;
+		mTimeTo = timeTo;
+		mCheckTime = timeFrom != Long.MIN_VALUE || timeTo != Long.MAX_VALUE;
+	}
+
 	/**
      * Check whether a given message will make it through this filter.
      * @param m message to check
@@ -256,41 +268,37 @@ public final class LogCatFilter {
             return false;
         }
 
-        /* if pid filter is enabled, filter out messages whose pid does not match
-         * the filter's pid */
-        if (mCheckPid && !m.getPid().equals(mPid)) {
+        if (!matchesPid(m.getPid()) || !matchesTime(m.getTimestamp()) || !matchesTag(m.getTag())) {
             return false;
         }
         //lijun
         //FIXME: need tid?
 
-//        /* if app name filter is enabled, filter out messages not matching the app name */
-//        if (mCheckAppName) {
-//            Matcher matcher = mAppNamePattern.matcher(m.getAppName());
-//            if (!matcher.find()) {
-//                return false;
-//            }
-//        }
-
-        /* if tag filter is enabled, filter out messages not matching the tag */
-        if (mCheckTag) {
-            Matcher matcher = mTagPattern.matcher(m.getTag());
-            if (!matcher.find()) {
-                return false;
-            }
-        }
-
         if (mCheckText) {
             Matcher matcher = mTextPattern.matcher(m.getMessage());
             if (!matcher.find()) {
                 return false;
             }
         }
-        
+
+        return true;
+    }
+
+    /**
+     * Check the conditions of the filter on the pid of a message: the pid field, the PID list of
+     * the live filter and the PID hide list.
+     */
+    boolean matchesPid(String pid) {
+        /* if pid filter is enabled, filter out messages whose pid does not match
+         * the filter's pid */
+        if (mCheckPid && !pid.equals(mPid)) {
+            return false;
+        }
+
         if (mPIDList != null && mPIDList.size() != 0){
         	boolean isFind = false;
     		for (int i = 0; i < mPIDList.size(); i++){
-    			if (m.getPid().equals(mPIDList.get(i))){
+    			if (pid.equals(mPIDList.get(i))){
     				isFind = true;
     				break;
     			}
@@ -300,11 +308,39 @@ public final class LogCatFilter {
     			return false;
     		}
         }
-        
+
+        if (mCheckHidePID){
+        	for (String PID : mPIDHideList){
+        		if (pid.equals(PID)){
+        			return false;
+        		}
+        	}
+        }
+        return true;
+    }
+
+    /** Whether the filter has conditions on the pid, {@link #matchesPid(String)} is not always true. */
+    boolean checksPid() {
+        return mCheckPid || (mPIDList != null && mPIDList.size() != 0) || mCheckHidePID;
+    }
+
+    /**
+     * Check the conditions of the filter on the tag of a message: the tag regex, the tag list of
+     * the live filter and the tag show list.
+     */
+    boolean matchesTag(String tag) {
+        /* if tag filter is enabled, filter out messages not matching the tag */
+        if (mCheckTag) {
+            Matcher matcher = mTagPattern.matcher(tag);
+            if (!matcher.find()) {
+                return false;
+            }
+        }
+
         if (mTagList != null && mTagList.size() != 0){
         	boolean isFind = false;
     		for (int i = 0; i < mTagList.size(); i++){
-    			if (m.getTag().equals(mTagList.get(i))){
+    			if (tag.equals(mTagList.get(i))){
     				isFind = true;
     				break;
     			}
@@ -314,14 +350,7 @@ public final class LogCatFilter {
     			return false;
     		}
         }
-        
-        if (mCheckHidePID){
-        	for (String PID : mPIDHideList){
-        		if (m.getPid().equals(PID)){
-        			return false;
-        		}
-        	}
-        }
+
         /*if (mCheckHideTag){
         	for (String tag : mTagHideList){
         		if (m.getTag().equals(tag)){
@@ -329,35 +358,119 @@ public final class LogCatFilter {
         		}
         	}
         }*/
-        
-        if (mCheckShowTag){
-        	boolean isFind = false;
-        	for (String tag : mTagShowSet){
-//        	for (String tag : mTagShowList){
-        		if (m.getTag().equals(tag)){
-        			isFind = true;
-        		}
-        	}
-        	if (!isFind){
-        		return false;
-        	}
-        }
 
+        if (mCheckShowTag && !mTagShowSet.contains(tag)){
+        	return false;
+        }
         return true;
     }
 
+    /** Whether the filter has conditions on the tag, {@link #matchesTag(String)} is not always true. */
+    boolean checksTag() {
+        return mCheckTag || (mTagList != null && mTagList.size() != 0) || mCheckShowTag;
+    }
+
+    /** If a time range is set, filter out messages outside of it or without a time. */
+    boolean matchesTime(long timestamp) {
+        return !mCheckTime || (timestamp != LogCatMessage.NO_TIMESTAMP
+                && timestamp >= mTimeFrom && timestamp <= mTimeTo);
+    }
+
+    boolean checksTime() {
+        return mCheckTime;
+    }
+
     /**
-     * Update the unread count based on new messages received. The unread count
-     * is incremented by the count of messages in the received list that will be
-     * accepted by this filter.
-     * @param newMessages list of new messages.
+     * Whether this filter is narrower than another one: all the messages it matches are matched
+     * by the other one. It is only worked out from the settings, a false answer may be wrong.
+     */
+    boolean narrows(LogCatFilter f) {
+        if (f == this) {
+            return true;
+        }
+        if (mLogLevel.getPriority() < f.mLogLevel.getPriority()) {
+            return false;
+        }
+        if (f.mCheckPid && !(mCheckPid && mPid.equals(f.mPid))) {
+            return false;
+        }
+        if (!sameList(mPIDList, f.mPIDList) || !sameList(mTagList, f.mTagList)) {
+            return false;
+        }
+        if (f.mCheckHidePID && !(mCheckHidePID && mPIDHideList.containsAll(f.mPIDHideList))) {
+            return false;
+        }
+        if (f.mCheckShowTag && !(mCheckShowTag && f.mTagShowSet.containsAll(mTagShowSet))) {
+            return false;
+        }
+        if (f.mCheckTime && !(mCheckTime && mTimeFrom >= f.mTimeFrom && mTimeTo <= f.mTimeTo)) {
+            return false;
+        }
+        return narrowsRegex(mCheckTag, mTag, f.mCheckTag, f.mTag)
+                && narrowsRegex(mCheckText, mText, f.mCheckText, f.mText);
+    }
+
+    private static boolean sameList(List<String> a, List<String> b) {
+        boolean emptyA = a == null || a.isEmpty();
+        boolean emptyB = b == null || b.isEmpty();
+        return emptyA || emptyB ? emptyA == emptyB : a.equals(b);
+    }
+
+    /**
+     * Whether a string found by a regex is always found by another one, which must be plain text
+     * unless they are equal: typing more of a word, or a regex needing the word.
      */
-    public void updateUnreadCount(List<LogCatMessageWrapper> newMessages) {
-        for (LogCatMessageWrapper m : newMessages) {
-            if (matches(m.getLogCatMessage())) {
-                mUnreadCount++;
+    private boolean narrowsRegex(boolean check, String regex, boolean otherCheck, String other) {
+        if (!otherCheck) {
+            return true;
+        }
+        if (!check) {
+            return false;
+        }
+        if (regex.equals(other)) {
+            return true;
+        }
+        List<String> otherLiterals = TextIndex.getLiterals(other);
+        if (otherLiterals.size() != 1 || !otherLiterals.get(0).equals(other)) {
+            return false;
+        }
+        boolean ignoreCase = getPatternCompileFlags(regex) != 0;
+        boolean otherIgnoreCase = getPatternCompileFlags(other) != 0;
+        if (ignoreCase && !otherIgnoreCase) {
+            return false;
+        }
+        for (String literal : TextIndex.getLiterals(regex)) {
+            // the other regex has no upper case if it ignores the case, only ASCII letters are folded
+            if ((otherIgnoreCase ? toLowerCaseAscii(literal) : literal).contains(other)) {
+                return true;
             }
         }
+        return false;
+    }
+
+    private static String toLowerCaseAscii(String s) {
+        char[] c = s.toCharArray();
+        for (int i = 0; i < c.length; i++) {
+            if (c[i] >= 'A' && c[i] <= 'Z') {
+                c[i] += 'a' - 'A';
+            }
+        }
+        return new String(c);
+    }
+
+    /** Regex the text of a message must contain, null if the filter does not look at the text. */
+    Pattern getTextPattern() {
+        return mCheckText ? mTextPattern : null;
+    }
+
+    /**
+     * Update the unread count based on new messages received. The unread count
+     * is incremented by the count of received messages accepted by this filter,
+     * see {@link LogCatCompiledFilter#count(List, LogStore, int, int)}.
+     * @param count number of new messages accepted.
+     */
+    public void addUnreadCount(int count) {
+        mUnreadCount += count;
     }
 
     /**
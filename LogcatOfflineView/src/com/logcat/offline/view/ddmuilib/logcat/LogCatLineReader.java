@@ -0,0 +1,224 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the lines of a log file straight from the bytes of a memory-mapped window of the file.
+ * <p/>
+ * Lines are separated the same way {@link java.io.BufferedReader#readLine()} does it ('\n', '\r'
+ * or "\r\n") and are trimmed like {@link String#trim()}, but nothing is copied: the current line
+ * is only a range of the mapped window. Callers look at its bytes and decode a {@link String}
+ * only for the parts they actually keep.
+ * <p/>
+ * Logs that can't be mapped, such as compressed ones, are read from a buffer holding a chunk of
+ * their lines instead.
+ */
+final class LogCatLineReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Size of the mapped window, a file bigger than this is mapped one window at a time. */
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mEnd;
+
+    private ByteBuffer mWindow;
+    private long mWindowStart;
+    private int mWindowLimit;
+    private int mPos;
+    private boolean mSkipLF;
+
+    private int mLineStart;
+    private int mLineEnd;
+
+    private char[] mChars = new char[256];
+    private byte[] mBytes = new byte[256];
+
+    public LogCatLineReader(File file) throws IOException {
+        this(file, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Read only the lines in a range of the file.
+     * @param start offset of the first byte to read, should be the beginning of a line
+     * @param end offset after the last byte to read, clamped to the file size
+     */
+    public LogCatLineReader(File file, long start, long end) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        mEnd = Math.min(end, mChannel.size());
+        map(Math.min(start, mEnd));
+    }
+
+    /**
+     * Read the lines of a buffer, from its index 0 to its limit. The buffer must not be changed
+     * while it is read.
+     */
+    public LogCatLineReader(ByteBuffer bytes) {
+        mFile = null;
+        mChannel = null;
+        mEnd = bytes.limit();
+        mWindow = bytes;
+        mWindowLimit = bytes.limit();
+    }
+
+    private void map(long start) throws IOException {
+        mWindowStart = start;
+        mWindowLimit = (int) Math.min(WINDOW_SIZE, mEnd - start);
+        mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, start, mWindowLimit);
+        mPos = 0;
+    }
+
+    private boolean isLastWindow() {
+        return mWindowStart + mWindowLimit >= mEnd;
+    }
+
+    /**
+     * Move to the next line.
+     * @return false once the end of the file has been reached.
+     */
+    public boolean nextLine() throws IOException {
+        if (mPos >= mWindowLimit) {
+            if (isLastWindow()) {
+                return false;
+            }
+            map(mWindowStart + mWindowLimit);
+        }
+        if (mSkipLF) {
+            mSkipLF = false;
+            if (mWindow.get(mPos) == '\n' && ++mPos >= mWindowLimit) {
+                return nextLine();
+            }
+        }
+
+        int begin = mPos;
+        int i = begin;
+        while (true) {
+            if (i >= mWindowLimit) {
+                if (isLastWindow() || begin == 0) {
+                    // end of file, or a line longer than a whole window: cut it here
+                    mPos = i;
+                    break;
+                }
+                // the line continues in the next window, map again from its beginning
+                map(mWindowStart + begin);
+                begin = 0;
+                i = 0;
+                continue;
+            }
+            byte b = mWindow.get(i);
+            if (b == '\n') {
+                mPos = i + 1;
+                break;
+            }
+            if (b == '\r') {
+                if (i + 1 < mWindowLimit) {
+                    mPos = mWindow.get(i + 1) == '\n' ? i + 2 : i + 1;
+                } else {
+                    // a '\n' may start the next window
+                    mPos = i + 1;
+                    mSkipLF = true;
+                }
+                break;
+            }
+            i++;
+        }
+
+        // trim the line the same way String.trim() does
+        int end = i;
+        while (begin < end && (mWindow.get(begin) & 0xff) <= ' ') {
+            begin++;
+        }
+        while (end > begin && (mWindow.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        mLineStart = begin;
+        mLineEnd = end;
+        return true;
+    }
+
+    /** Length in bytes of the current, trimmed, line. */
+    public int length() {
+        return mLineEnd - mLineStart;
+    }
+
+    public boolean isEmpty() {
+        return mLineEnd == mLineStart;
+    }
+
+    /** Byte at the given index of the current line. */
+    public byte byteAt(int index) {
+        return mWindow.get(mLineStart + index);
+    }
+
+    /** Offset in the file of the first byte of the current line. */
+    public long getLineOffset() {
+        return mWindowStart + mLineStart;
+    }
+
+    /** Number of bytes of the file consumed so far. */
+    public long getPosition() {
+        return mWindowStart + mPos;
+    }
+
+    public long getFileSize() {
+        return mEnd;
+    }
+
+    /** Decode the whole current line. */
+    public String getString() {
+        return getString(0, length());
+    }
+
+    /**
+     * Decode part of the current line as UTF-8.
+     * @param from index of the first byte, in the current line
+     * @param to index after the last byte, in the current line
+     */
+    public String getString(int from, int to) {
+        int len = to - from;
+        if (len <= 0) {
+            return "";
+        }
+        if (mChars.length < len) {
+            mChars = new char[Math.max(len, mChars.length * 2)];
+        }
+        int base = mLineStart + from;
+        for (int i = 0; i < len; i++) {
+            byte b = mWindow.get(base + i);
+            if (b < 0) {
+                return decode(base, len);
+            }
+            mChars[i] = (char) b;
+        }
+        return new String(mChars, 0, len);
+    }
+
+    private String decode(int base, int len) {
+        if (mBytes.length < len) {
+            mBytes = new byte[Math.max(len, mBytes.length * 2)];
+        }
+        for (int i = 0; i < len; i++) {
+            mBytes[i] = mWindow.get(base + i);
+        }
+        return new String(mBytes, 0, len, UTF8);
+    }
+
+    public void close() {
+        mWindow = null;
+        if (mFile == null) {
+            return;
+        }
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmuilib.logcat.LogCatMessage;
+
+/**
+ * Single pass, regex free, parsers for the most common logcat formats: {@code -v threadtime},
+ * {@code -v time} and {@code brief}. They work on the bytes of the current line of a
+ * {@link LogCatLineReader} and only decode the fields they keep; pid, tid and tag strings are
+ * shared between messages.
+ * <p/>
+ * Each method accepts only the plain shape of its format and returns null for anything else
+ * (odd spacing, empty tag, line terminators that the regex '.' would not match...). The caller
+ * then falls back to the regex of that format, so both paths produce the same messages.
+ */
+final class LogCatLineTokenizer {
+    private static final LogLevel[] LEVELS = new LogLevel[128];
+    static {
+        for (LogLevel level : LogLevel.values()) {
+            LEVELS[level.getPriorityLetter()] = level;
+        }
+        /*
+         * LogLevel doesn't support messages with severity "F".
+         * Log.wtf() is supposed to generate "A", but generates "F".
+         */
+        LEVELS['F'] = LogLevel.ASSERT;
+    }
+
+    private static final String NO_TIME = "?";
+    private static final String NO_TID = "?";
+
+    /** Small direct-mapped cache of the strings built for pids, tids and tags. */
+    private static final int CACHE_SIZE = 4096;
+    private final String[] mCache = new String[CACHE_SIZE];
+
+    /** Log file the message texts are left in, null to decode them right away. */
+    private final LogFileText mText;
+
+    public LogCatLineTokenizer() {
+        this(null);
+    }
+
+    /**
+     * @param text the log file being read, the messages will only point to their text in it.
+     */
+    public LogCatLineTokenizer(LogFileText text) {
+        mText = text;
+    }
+
+    /** Parse {@code "04-08 12:57:40.370    89   103 I Installer: connecting..."}. */
+    public LogCatMessage parseThreadtime(LogCatLineReader line) {
+        int len = line.length();
+        int timeEnd = skipTime(line, len);
+        if (timeEnd < 0) {
+            return null;
+        }
+        int pidStart = skipSpaces(line, timeEnd, len);
+        if (pidStart == timeEnd) {
+            return null;
+        }
+        int pidEnd = skipDigits(line, pidStart, len);
+        if (pidEnd == pidStart) {
+            return null;
+        }
+        int tidStart = skipSpaces(line, pidEnd, len);
+        if (tidStart == pidEnd) {
+            return null;
+        }
+        int tidEnd = skipDigits(line, tidStart, len);
+        if (tidEnd == tidStart || tidEnd + 3 > len || !isSpace(line.byteAt(tidEnd))) {
+            return null;
+        }
+        LogLevel level = getLevel(line.byteAt(tidEnd + 1));
+        if (level == null || !isSpace(line.byteAt(tidEnd + 2))) {
+            return null;
+        }
+
+        int tagStart = tidEnd + 3;
+        int colon = tagStart;
+        while (true) {
+            colon = indexOf(line, ':', colon, len);
+            if (colon < 0) {
+                return null;
+            }
+            if (colon + 1 < len && isSpace(line.byteAt(colon + 1))) {
+                break;
+            }
+            colon++;
+        }
+        String tag = getTag(line, tagStart, colon);
+        if (tag == null) {
+            return null;
+        }
+        int msgStart = skipSpaces(line, colon + 1, len);
+        if (hasLineTerminator(line, tagStart, len)) {
+            return null;
+        }
+
+        return newMessage(line, level, getCached(line, pidStart, pidEnd),
+                getCached(line, tidStart, tidEnd), tag, line.getString(0, timeEnd), msgStart, len);
+    }
+
+    /** Parse {@code "04-07 09:19:27.446 I/InputReader(   89): Device reconfigured"}. */
+    public LogCatMessage parseTime(LogCatLineReader line) {
+        int len = line.length();
+        int timeEnd = skipTime(line, len);
+        if (timeEnd < 0) {
+            return null;
+        }
+        int i = timeEnd;
+        while (i < len && line.byteAt(i) == ':') {
+            i++;
+        }
+        if (i >= len || !isSpace(line.byteAt(i))) {
+            return null;
+        }
+        return parseLevelTagPid(line, i + 1, len, line.getString(0, timeEnd), "");
+    }
+
+    /** Parse {@code "I/MediaUploader(22541): No need to wake up"}. */
+    public LogCatMessage parseBrief(LogCatLineReader line) {
+        return parseLevelTagPid(line, 0, line.length(), NO_TIME, NO_TID);
+    }
+
+    /** Parse the {@code "I/Tag( pid): message"} part shared by brief and -v time. */
+    private LogCatMessage parseLevelTagPid(LogCatLineReader line, int start, int len,
+            String time, String tid) {
+        if (start + 2 > len || line.byteAt(start + 1) != '/') {
+            return null;
+        }
+        LogLevel level = getLevel(line.byteAt(start));
+        if (level == null) {
+            return null;
+        }
+
+        // the tag ends at the first '(' followed by "<spaces><digits>):<spaces>"
+        int tagStart = start + 2;
+        int paren = tagStart;
+        int pidStart;
+        int pidEnd;
+        while (true) {
+            paren = indexOf(line, '(', paren, len);
+            if (paren < 0) {
+                return null;
+            }
+            pidStart = skipSpaces(line, paren + 1, len);
+            pidEnd = skipDigits(line, pidStart, len);
+            if (pidEnd > pidStart && pidEnd + 2 < len && line.byteAt(pidEnd) == ')'
+                    && line.byteAt(pidEnd + 1) == ':' && isSpace(line.byteAt(pidEnd + 2))) {
+                break;
+            }
+            paren++;
+        }
+        String tag = getTag(line, tagStart, paren);
+        if (tag == null) {
+            return null;
+        }
+        int msgStart = skipSpaces(line, pidEnd + 2, len);
+        if (hasLineTerminator(line, tagStart, len)) {
+            return null;
+        }
+
+        return newMessage(line, level, getCached(line, pidStart, pidEnd), tid, tag, time, msgStart,
+                len);
+    }
+
+    private LogCatMessage newMessage(LogCatLineReader line, LogLevel level, String pid, String tid,
+            String tag, String time, int msgStart, int len) {
+        if (mText != null) {
+            return new LogCatMessage(level, pid, tid, tag, time, mText,
+                    line.getLineOffset() + msgStart, len - msgStart, LogCatMessage.NO_TIMESTAMP);
+        }
+        return new LogCatMessage(level, pid, tid, tag, time, line.getString(msgStart, len));
+    }
+
+    /**
+     * Skip a {@code "MM-dd HH:mm:ss.SSS"} time stamp at the beginning of the line.
+     * @return index after the time stamp, -1 if the line does not start with one.
+     */
+    private static int skipTime(LogCatLineReader line, int len) {
+        if (len < 16) {
+            return -1;
+        }
+        if (!isDigit(line.byteAt(0)) || !isDigit(line.byteAt(1)) || line.byteAt(2) != '-'
+                || !isDigit(line.byteAt(3)) || !isDigit(line.byteAt(4))
+                || !isSpace(line.byteAt(5))
+                || !isDigit(line.byteAt(6)) || !isDigit(line.byteAt(7)) || line.byteAt(8) != ':'
+                || !isDigit(line.byteAt(9)) || !isDigit(line.byteAt(10)) || line.byteAt(11) != ':'
+                || !isDigit(line.byteAt(12)) || !isDigit(line.byteAt(13))
+                || line.byteAt(14) != '.') {
+            return -1;
+        }
+        int end = skipDigits(line, 15, len);
+        return end == 15 ? -1 : end;
+    }
+
+    private String getTag(LogCatLineReader line, int start, int end) {
+        while (start < end && (line.byteAt(start) & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (line.byteAt(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            // the regex path drops messages with an empty tag
+            return null;
+        }
+        return getCached(line, start, end);
+    }
+
+    /** Decode a short field, reusing the string built the last time the same bytes were seen. */
+    private String getCached(LogCatLineReader line, int start, int end) {
+        int len = end - start;
+        int hash = len;
+        for (int i = start; i < end; i++) {
+            byte b = line.byteAt(i);
+            if (b < 0) {
+                return line.getString(start, end);
+            }
+            hash = 31 * hash + b;
+        }
+        int slot = (hash ^ (hash >>> 12)) & (CACHE_SIZE - 1);
+        String s = mCache[slot];
+        if (s != null && s.length() == len) {
+            int i = 0;
+            while (i < len && s.charAt(i) == line.byteAt(start + i)) {
+                i++;
+            }
+            if (i == len) {
+                return s;
+            }
+        }
+        s = line.getString(start, end);
+        mCache[slot] = s;
+        return s;
+    }
+
+    private static LogLevel getLevel(byte b) {
+        return b >= 0 ? LEVELS[b] : null;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /** Same characters as the regex {@code \s}. */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    private static int skipSpaces(LogCatLineReader line, int i, int len) {
+        while (i < len && isSpace(line.byteAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipDigits(LogCatLineReader line, int i, int len) {
+        while (i < len && isDigit(line.byteAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(LogCatLineReader line, char c, int i, int len) {
+        while (i < len) {
+            if (line.byteAt(i) == c) {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Look for the UTF-8 encoding of U+0085, U+2028 or U+2029, which the regex '.' does not
+     * match. '\n' and '\r' never occur inside a line.
+     */
+    private static boolean hasLineTerminator(LogCatLineReader line, int i, int len) {
+        for (; i < len - 1; i++) {
+            byte b = line.byteAt(i);
+            if (b >= 0) {
+                continue;
+            }
+            if (b == (byte) 0xC2 && line.byteAt(i + 1) == (byte) 0x85) {
+                return true;
+            }
+            if (b == (byte) 0xE2 && i + 2 < len && line.byteAt(i + 1) == (byte) 0x80
+                    && (line.byteAt(i + 2) == (byte) 0xA8 || line.byteAt(i + 2) == (byte) 0xA9)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,155 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import org.eclipse.jface.preference.PreferenceConverter;
+import org.eclipse.jface.preference.PreferenceStore;
+import org.eclipse.jface.viewers.TableViewer;
+import org.eclipse.jface.viewers.TableViewerColumn;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
+import org.eclipse.swt.graphics.Font;
+import org.eclipse.swt.graphics.FontData;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+
+import com.android.ddmuilib.TableHelper;
+import com.android.ddmuilib.logcat.LogCatMessage;
+
+/**
+ * The "All buffers" view: the messages of several {@link LogCatPanel}s merged by time in one
+ * table, the buffer of each message in the first column. It follows the panels, the merge starts
+ * again when one of them shows another file and goes on as they get messages (see
+ * {@link MergedLog}). Selecting a message selects the same time in the panels, and the other way
+ * round.
+ */
+public final class LogCatMergedPanel implements ILogCatSyncListener {
+    /** Interval between two looks at the stores of the panels, in ms. */
+    private static final int UPDATE_INTERVAL = 500;
+
+    private static final String COLSIZE_PREFKEY_PREFIX = "logcat.merged.colsize.";
+
+    private final PreferenceStore mPrefStore;
+    private final LogCatPanel[] mPanels;
+    private final MergedLog mLog;
+
+    private TableViewer mViewer;
+    private LogCatMessageContentProvider mContentProvider;
+    private boolean mIsSynFromHere;
+
+    /**
+     * @param bufferNames names of the buffers shown in the panels, for the buffer column
+     * @param panels the panels to merge, one per buffer
+     */
+    public LogCatMergedPanel(PreferenceStore prefStore, String[] bufferNames, LogCatPanel... panels) {
+        mPrefStore = prefStore;
+        mPanels = panels;
+        mLog = new MergedLog(bufferNames);
+    }
+
+    public void createControl(Composite parent) {
+        Composite c = new Composite(parent, SWT.NONE);
+        c.setLayout(new GridLayout(1, false));
+
+        Table table = new Table(c, SWT.FULL_SELECTION | SWT.MULTI | SWT.VIRTUAL);
+        table.setLayoutData(new GridData(GridData.FILL_BOTH));
+        mViewer = new TableViewer(table);
+
+        String[] properties = { "Buffer", "Level", "Time", "PID", "TID", "Tag", "Text" };
+        String[] sampleText = { "  events  ", "    ", "    00-00 00:00:00.0000 ", "  0000", "  0000",
+            "    SampleTagText++++",
+            "    Log Message field should be pretty long by default. As long as possible for correct display on Mac." };
+
+        // the font of the main panel
+        FontData fd = PreferenceConverter.getFontData(mPrefStore,
+                LogCatPanel.LOGCAT_VIEW_FONT_PREFKEY + mPanels[0].getPanelID());
+        final Font font = new Font(Display.getDefault(), fd);
+        LogCatMessageLabelProvider labelProvider = new LogCatMessageLabelProvider(font, true);
+        for (int i = 0; i < properties.length; i++) {
+            TableColumn tc = TableHelper.createTableColumn(table, properties[i], SWT.LEFT,
+                    sampleText[i], COLSIZE_PREFKEY_PREFIX + properties[i], mPrefStore);
+            new TableViewerColumn(mViewer, tc).setLabelProvider(labelProvider);
+        }
+        table.setLinesVisible(true);
+        table.setHeaderVisible(true);
+        mContentProvider = new LogCatMessageContentProvider();
+        mViewer.setContentProvider(mContentProvider);
+        mViewer.setInput(mLog.asList());
+
+        table.addListener(SWT.MeasureItem, new Listener() {
+            @Override
+            public void handleEvent(Event event) {
+                event.height = event.gc.getFontMetrics().getHeight();
+            }
+        });
+        table.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                int index = mViewer.getTable().getSelectionIndex();
+                if (index < 0 || index >= mLog.size()) {
+                    return;
+                }
+                LogCatMessageWrapper m = mLog.asList().get(index);
+                long timestamp = m.getStore().getTimestamp(m.getRow());
+                if (timestamp != LogCatMessage.NO_TIMESTAMP) {
+                    mIsSynFromHere = true;
+                    LogCatSyncManager.getInstance().syncTime(timestamp);
+                }
+            }
+        });
+        table.addListener(SWT.Dispose, new Listener() {
+            @Override
+            public void handleEvent(Event event) {
+                LogCatSyncManager.getInstance().removeMessageReceivedEventListener(LogCatMergedPanel.this);
+                font.dispose();
+            }
+        });
+
+        LogCatSyncManager.getInstance().addSyncTimeEventListener(this);
+        update();
+    }
+
+    /** Merge what the panels got since the last update, then look again later. */
+    private void update() {
+        Table table = mViewer.getTable();
+        if (table.isDisposed()) {
+            return;
+        }
+        boolean[] loading = new boolean[mPanels.length];
+        for (int i = 0; i < mPanels.length; i++) {
+            mLog.setStore(i, mPanels[i].getLogStore());
+            loading[i] = LogCatMessageParser.getInstance().isLoading(mPanels[i].getPanelID());
+        }
+        if (mLog.update(loading)) {
+            // keep showing the latest messages if the last one was visible
+            int visible = table.getClientArea().height / Math.max(1, table.getItemHeight());
+            boolean atEnd = table.getTopIndex() + visible >= table.getItemCount() - 1;
+            mContentProvider.refresh();
+            if (atEnd) {
+                table.setTopIndex(table.getItemCount() - 1);
+            }
+        }
+        // a merge started again goes on in slices, without holding the UI thread
+        Display.getDefault().timerExec(mLog.isBehind() ? 0 : UPDATE_INTERVAL, new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        });
+    }
+
+    @Override
+    public void synSelected(long timestamp) {
+        if (!mIsSynFromHere && !mViewer.getTable().isDisposed() && mLog.size() > 0) {
+            int index = Math.min(mLog.indexOfTime(timestamp), mLog.size() - 1);
+            mViewer.getTable().setSelection(index);
+            mViewer.getTable().setTopIndex(index - 6);
+        }
+        mIsSynFromHere = false;
+    }
+}
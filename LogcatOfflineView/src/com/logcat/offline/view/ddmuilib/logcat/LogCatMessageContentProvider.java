@@ -16,30 +16,388 @@
 
 package com.logcat.offline.view.ddmuilib.logcat;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-import org.eclipse.jface.viewers.IStructuredContentProvider;
+import org.eclipse.jface.viewers.ILazyContentProvider;
+import org.eclipse.jface.viewers.TableViewer;
 import org.eclipse.jface.viewers.Viewer;
+import org.eclipse.swt.widgets.Display;
+
+import com.android.ddmuilib.logcat.LogCatMessage;
 
 /**
  * A JFace content provider for the LogCat log messages, used in the {@link LogCatPanel}.
+ * <p/>
+ * It is a lazy provider for a virtual table: the table only gets the number of rows, and the
+ * messages of the items it shows are asked for when they are painted. The viewer must then be
+ * refreshed with {@link #refresh()}, which also sets the number of items. The input is a
+ * {@link LogStore}, or a {@link List} of {@link LogCatMessageWrapper} shown as it is.
+ * <p/>
+ * It does the filtering of the panel itself, instead of the viewer filters, and keeps the rows of
+ * the {@link LogStore} that pass the filters. When the store grows only the new rows are filtered,
+ * and rows a bounded store dropped leave the head of the result. When the filters change, the
+ * whole store is filtered again, unless the new filters are narrower than the previous ones (see
+ * {@link LogCatCompiledFilter#narrows(LogCatCompiledFilter)}): then only the rows that passed
+ * the previous ones are looked at.
+ * <p/>
+ * The filtering of a large store is done in the background: the rows of the previous filters are
+ * still shown meanwhile, and are swapped for the new ones in the UI thread once they are all known.
+ * Filters changed again before that cancel the filtering still going on. Many rows added at once,
+ * as a store loaded from an index given as input, are filtered in the background the same way:
+ * they are shown once they are all filtered, the table stays empty meanwhile for a new input.
+ * <p/>
+ * The rows filtered in the background are also kept with the filters as a {@link RowBitmap}, built
+ * in the background too: when the same compiled filters are set again, as a recent filter of a
+ * cache, they are shown at once.
+ * <p/>
+ * The rows it keeps are the ones of the table items, between two calls to {@link #refresh()}:
+ * an index in the table gives the row shown there with {@link #getRow(int)}, without filtering
+ * again.
  */
-public final class LogCatMessageContentProvider implements IStructuredContentProvider {
+public final class LogCatMessageContentProvider implements ILazyContentProvider {
+    /** Fewer rows than this are filtered at once, in the UI thread. */
+    private static final int BACKGROUND_ROWS = 64 * 1024;
+
+    private TableViewer mViewer;
+    private LogStore mStore;
+    private List<?> mList;
+    private LogCatCompiledFilter mFilter =
+            LogCatCompiledFilter.compile(Collections.<LogCatFilter>emptyList());
+
+    /** Rows that pass the filters, in order, from {@link #mHead} to {@link #mTail}. */
+    private int[] mRows = new int[1024];
+    private int mHead;
+    private int mTail;
+    /** Rows of the store below this one have been filtered already. */
+    private int mFilteredRows;
+
+    /** Filters being applied in the background, null if none. */
+    private LogCatCompiledFilter mPending;
+    /** Run once the rows of {@link #mPending} are shown, null to only refresh the viewer. */
+    private Runnable mPendingDone;
+
+    private static ExecutorService sFilterExecutor;
+
+    /**
+     * The thread filters are applied on in the background, one at a time. The panels count the
+     * unread messages of their saved filters on it as well.
+     */
+    static synchronized ExecutorService getFilterExecutor() {
+        if (sFilterExecutor == null) {
+            sFilterExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "LogCat filter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sFilterExecutor;
+    }
+
     @Override
     public void dispose() {
     }
 
     @Override
     public void inputChanged(Viewer viewer, Object oldInput, Object newInput) {
+        mViewer = (TableViewer) viewer;
+        if (mStore != null && newInput != mStore) {
+            // nothing of the previous store is needed anymore
+            mFilter.releaseStore();
+        }
+        mStore = newInput instanceof LogStore ? (LogStore) newInput : null;
+        mList = newInput instanceof List<?> ? (List<?>) newInput : null;
+        if (mPending != null) {
+            // the new store is filtered from scratch anyway, with the latest filters
+            mPending.cancel();
+            mFilter = LogCatCompiledFilter.compile(mPending.getFilters());
+            mPending = null;
+            mPendingDone = null;
+        }
+        reset();
+        // the viewer refreshes the items after this, it does not ask their number
+        if (mViewer != null && !mViewer.getTable().isDisposed()) {
+            setItemCount();
+        }
+    }
+
+    /**
+     * Bring the rows up to date with the input and refresh the viewer. Only the items of the
+     * table that are shown are asked for again.
+     */
+    public void refresh() {
+        if (mViewer == null) {
+            // no input yet
+            return;
+        }
+        setItemCount();
+        mViewer.refresh();
+    }
+
+    private void setItemCount() {
+        if (mStore != null) {
+            update();
+            mViewer.setItemCount(getRowCount());
+        } else {
+            mViewer.setItemCount(mList != null ? mList.size() : 0);
+        }
     }
 
     @Override
-    public Object[] getElements(Object model) {
-        if (model instanceof List<?>) {
-            Object[] e = ((List<?>) model).toArray();
-            return e;
+    public void updateElement(int index) {
+        if (mStore != null) {
+            if (index < getRowCount()) {
+                mViewer.replace(getElement(index), index);
+            }
+        } else if (mList != null && index < mList.size()) {
+            mViewer.replace(mList.get(index), index);
+        }
+    }
+
+    /**
+     * Change the filters a row must pass to be shown, the store is filtered again, or only the
+     * rows shown when the new filters are narrower. Must be called from the UI thread.
+     * @param done run in the UI thread once the rows of the new filters are the ones provided,
+     * unless the filters or the input change before, or the filters are being applied already:
+     * then only the one given first is run
+     */
+    public void setFilter(final LogCatCompiledFilter filter, final Runnable done) {
+        if (filter == mPending) {
+            // already being applied, the rows are swapped once they are known
+            if (mPendingDone == null) {
+                // only brought up to date with the store, nobody waits for the rows yet
+                mPendingDone = done;
+            }
+            return;
+        }
+        if (mPending != null) {
+            mPending.cancel();
+            if (mPending == mFilter) {
+                // the shown filters were brought up to date, cancelled they filter nothing more
+                mFilter = LogCatCompiledFilter.compile(mFilter.getFilters());
+            }
+            mPending = null;
+            mPendingDone = null;
+        }
+        if (mStore != null) {
+            RowBitmap result = filter.getResult(mStore);
+            if (result != null) {
+                // shown lately, only the rows added since are left to filter
+                mFilter = filter;
+                mRows = result.toArray(mStore.getFirstRow(), filter.getResultSize());
+                mHead = 0;
+                mTail = mRows.length;
+                mFilteredRows = filter.getResultSize();
+                done.run();
+                return;
+            }
+        }
+        if (mStore == null || mStore.size() < BACKGROUND_ROWS) {
+            applyFilter(filter);
+            done.run();
+            return;
+        }
+        final boolean narrower = filter.narrows(mFilter);
+        if (narrower && mFilter.narrows(filter)) {
+            // the same rows pass
+            if (mFilter.getResult(mStore) != null) {
+                filter.setResult(mStore, mFilter.getResult(mStore), mFilter.getResultSize());
+            }
+            mFilter = filter;
+            done.run();
+            return;
         }
 
-        return null;
+        // rows are still added to the shown ones meanwhile
+        filterInBackground(filter, narrower ? Arrays.copyOfRange(mRows, mHead, mTail) : null, true,
+                done);
+    }
+
+    /**
+     * Filter the rows of the store in the background, and show them once they are known.
+     * @param previous rows already filtered, up to {@link #mFilteredRows}, or null to filter the
+     * whole store
+     * @param refine whether the previous rows must be filtered again
+     * @param done run in the UI thread once the rows are shown, null to refresh the viewer
+     */
+    private void filterInBackground(final LogCatCompiledFilter filter, final int[] previous,
+            final boolean refine, Runnable done) {
+        final LogStore store = mStore;
+        final int filtered = mFilteredRows;
+        final Display display = Display.getDefault();
+        mPending = filter;
+        mPendingDone = done;
+        getFilterExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final int size = store.size();
+                final int[] rows;
+                try {
+                    if (previous == null) {
+                        rows = filter.select(store, 0, size);
+                    } else {
+                        // only the rows that passed the previous filters can pass these ones
+                        int[] kept = refine
+                                ? filter.refine(store, previous, 0, previous.length) : previous;
+                        int[] added = filter.select(store, filtered, size);
+                        rows = Arrays.copyOf(kept, kept.length + added.length);
+                        System.arraycopy(added, 0, rows, kept.length, added.length);
+                    }
+                } catch (CancellationException e) {
+                    return;
+                }
+                // kept with the filters, to show the rows at once if they are set again
+                final RowBitmap result = new RowBitmap();
+                for (int row : rows) {
+                    result.add(row);
+                }
+                if (display.isDisposed()) {
+                    return;
+                }
+                display.asyncExec(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mPending != filter || mStore != store) {
+                            return;
+                        }
+                        Runnable done = mPendingDone;
+                        mPending = null;
+                        mPendingDone = null;
+                        filter.setResult(store, result, size);
+                        mFilter = filter;
+                        mRows = rows;
+                        mHead = 0;
+                        mTail = rows.length;
+                        mFilteredRows = size;
+                        if (done != null) {
+                            done.run();
+                        } else if (!mViewer.getTable().isDisposed()) {
+                            refresh();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /** Change the filters right away. */
+    private void applyFilter(LogCatCompiledFilter filter) {
+        if (mStore == null || !filter.narrows(mFilter)) {
+            mFilter = filter;
+            reset();
+            return;
+        }
+        boolean same = mFilter.narrows(filter);
+        mFilter = filter;
+        if (same) {
+            return;
+        }
+        int[] rows = filter.refine(mStore, mRows, mHead, mTail);
+        if (rows.length > mRows.length) {
+            mRows = new int[rows.length];
+        }
+        System.arraycopy(rows, 0, mRows, 0, rows.length);
+        mHead = 0;
+        mTail = rows.length;
+    }
+
+    private void reset() {
+        mHead = 0;
+        mTail = 0;
+        mFilteredRows = 0;
+    }
+
+    /** Number of rows shown, the items of the table since its last refresh. */
+    public int getRowCount() {
+        return mTail - mHead;
+    }
+
+    /** Row of the store shown at an index of the table. */
+    public int getRow(int index) {
+        return mRows[mHead + index];
+    }
+
+    /** Message shown at an index of the table. */
+    public LogCatMessageWrapper getElement(int index) {
+        return new LogCatMessageWrapper(mStore, getRow(index));
+    }
+
+    /**
+     * Index of the shown row with the given time, or of a row next to it if none has it. Rows
+     * without a time stamp take the time of the closest timed row before them, as in
+     * {@link MergedLog}.
+     * @return the index, 0 if no row is shown.
+     */
+    public int indexOfTime(long timestamp) {
+        int low = 0;
+        int high = getRowCount() - 1;
+        int mid = (low + high) / 2;
+        while (low <= high) {
+            mid = (low + high) / 2;
+            long time = getTimeAt(mid);
+            if (timestamp < time) {
+                high = mid - 1;
+            } else if (timestamp > time) {
+                low = mid + 1;
+            } else {
+                break;
+            }
+        }
+        return mid;
+    }
+
+    /** Time of a shown row, or of the closest row before it that has one. */
+    private long getTimeAt(int index) {
+        for (int i = index; i >= 0; i--) {
+            long time = mStore.getTimestamp(getRow(i));
+            if (time != LogCatMessage.NO_TIMESTAMP) {
+                return time;
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /** Bring the filtered rows up to date with the store. */
+    private void update() {
+        int first = mStore.getFirstRow();
+        int size = mStore.size();
+
+        // rows dropped by the store are at the head of the result
+        while (mHead < mTail && mRows[mHead] < first) {
+            mHead++;
+        }
+        if (size - Math.max(mFilteredRows, first) >= BACKGROUND_ROWS) {
+            // too many for the UI thread, they are shown once filtered in the background
+            if (mPending == null) {
+                filterInBackground(mFilter, Arrays.copyOfRange(mRows, mHead, mTail), false, null);
+            }
+            return;
+        }
+        for (int row : mFilter.select(mStore, Math.max(mFilteredRows, first), size)) {
+            add(row);
+        }
+        mFilteredRows = size;
+    }
+
+    private void add(int row) {
+        if (mTail == mRows.length) {
+            int count = mTail - mHead;
+            // when the head is mostly dropped rows, moving the rest down makes enough room
+            if (count >= mRows.length / 2) {
+                mRows = Arrays.copyOf(mRows, Math.max(mRows.length * 2, 1024));
+            }
+            System.arraycopy(mRows, mHead, mRows, 0, count);
+            mHead = 0;
+            mTail = count;
+        }
+        mRows[mTail++] = row;
     }
 }
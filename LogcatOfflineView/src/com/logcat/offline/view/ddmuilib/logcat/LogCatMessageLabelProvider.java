@@ -23,11 +23,10 @@ import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.Point;
 
 import com.android.ddmlib.Log.LogLevel;
-import com.android.ddmuilib.logcat.LogCatMessage;
 
 /**
  * A JFace Column label provider for the LogCat log messages. It expects elements of type
- * {@link LogCatMessage}.
+ * {@link LogCatMessageWrapper}, and reads the fields of their row straight from the {@link LogStore}.
  */
 public final class LogCatMessageLabelProvider extends ColumnLabelProvider {
     private static final int INDEX_LOGLEVEL = 0;
@@ -52,31 +51,43 @@ public final class LogCatMessageLabelProvider extends ColumnLabelProvider {
 
     private Font mLogFont;
     private int mWrapWidth = 100;
+    private final boolean mShowBuffer;
 
     /**
      * Construct a column label provider for the logcat table.
      * @param font default font to use
      */
     public LogCatMessageLabelProvider(Font font) {
+        this(font, false);
+    }
+
+    /**
+     * Construct a column label provider for a logcat table.
+     * @param font default font to use
+     * @param showBuffer whether the first column of the table shows the buffer of the messages,
+     * which are then {@link MergedLog.MergedMessageWrapper}s
+     */
+    public LogCatMessageLabelProvider(Font font, boolean showBuffer) {
         mLogFont = font;
+        mShowBuffer = showBuffer;
     }
 
-    private String getCellText(LogCatMessage m, int columnIndex) {
+    private String getCellText(LogStore store, int row, int columnIndex) {
         switch (columnIndex) {
             case INDEX_LOGLEVEL:
-                return Character.toString(m.getLogLevel().getPriorityLetter());
+                return Character.toString(store.getLogLevel(row).getPriorityLetter());
             case INDEX_LOGTIME:
-                return m.getTime();
+                return store.getTime(row);
             case INDEX_PID:
-                return m.getPid();
+                return store.getPid(row);
             case INDEX_TID:
-                return m.getTid();
+                return store.getTid(row);
 //            case INDEX_APPNAME:
 //                return m.getAppName();
             case INDEX_TAG:
-                return m.getTag();
+                return store.getTag(row);
             case INDEX_TEXT:
-                return m.getMessage();
+                return store.getMessage(row);
             default:
                 return "";
         }
@@ -88,22 +99,29 @@ public final class LogCatMessageLabelProvider extends ColumnLabelProvider {
         if (!(element instanceof LogCatMessageWrapper)) {
             return;
         }
-        LogCatMessage m = ((LogCatMessageWrapper) element).getLogCatMessage();
-
-        String text = getCellText(m, cell.getColumnIndex());
+        LogStore store = ((LogCatMessageWrapper) element).getStore();
+        int row = ((LogCatMessageWrapper) element).getRow();
+
+        String text;
+        if (!mShowBuffer) {
+            text = getCellText(store, row, cell.getColumnIndex());
+        } else if (cell.getColumnIndex() == 0) {
+            text = ((MergedLog.MergedMessageWrapper) element).getBufferName();
+        } else {
+            text = getCellText(store, row, cell.getColumnIndex() - 1);
+        }
         cell.setText(text);
         cell.setFont(mLogFont);
-        cell.setForeground(getForegroundColor(m));
-        cell.setBackground(getBackgroundColor((LogCatMessageWrapper) element));
+        cell.setForeground(getForegroundColor(store.getLogLevel(row)));
+        cell.setBackground(getBackgroundColor(store, row));
     }
 
-    private Color getBackgroundColor(LogCatMessageWrapper wrapper) {
-        return (wrapper.isHighlight() | wrapper.isSearchHightlight()) ? HIGHLITH_MSG_BACKGROUND_COLOR
+    private Color getBackgroundColor(LogStore store, int row) {
+        return (store.isHighlight(row) | store.isSearchHighlight(row)) ? HIGHLITH_MSG_BACKGROUND_COLOR
             : NORMAL_MSG_BACKGROUND_COLOR;
     }
 
-    private Color getForegroundColor(LogCatMessage m) {
-        LogLevel l = m.getLogLevel();
+    private Color getForegroundColor(LogLevel l) {
 
         if (l.equals(LogLevel.VERBOSE)) {
             return VERBOSE_MSG_COLOR;
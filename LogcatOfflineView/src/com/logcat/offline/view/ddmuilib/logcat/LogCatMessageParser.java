@@ -16,17 +16,32 @@
 
 package com.logcat.offline.view.ddmuilib.logcat;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -116,72 +131,806 @@ public final class LogCatMessageParser {
     	return PatternType.UNKNOWN;
     }
  
-    public void parseLogFile(String filePath, int panelID){
+    /**
+     * Size of the chunks a log file is cut into. Chunks are parsed in parallel and delivered to
+     * the listeners in file order, one batch per chunk, so only a few chunks of messages are
+     * alive at any time and the panel can show the first messages long before the end of the
+     * file is reached.
+     */
+    private static final int CHUNK_SIZE = 2 * 1024 * 1024;
+
+    private static final int PARSER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Maximum number of chunks parsed ahead of the one being delivered. */
+    private static final int CHUNKS_IN_FLIGHT = 2 * PARSER_THREADS;
+
+    private static ExecutorService sChunkExecutor;
+
+    /**
+     * Files from this size on leave the message texts in the file: messages only record where
+     * their text is, and it is read back when it is displayed or filtered. The heap then depends
+     * on the number of lines rather than on the size of the file.
+     */
+    private static final long LAZY_TEXT_FILE_SIZE = 256 * 1024 * 1024;
+
+    private static synchronized ExecutorService getChunkExecutor(){
+    	if (sChunkExecutor == null){
+    		sChunkExecutor = Executors.newFixedThreadPool(PARSER_THREADS, new ThreadFactory() {
+    			@Override
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "LogCat chunk parser");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+    	return sChunkExecutor;
+    }
+
+    private static ExecutorService sJobExecutor;
+
+    /** Jobs started and not finished yet, guarded by itself. */
+    private final List<LogCatParseJob> mJobs = new ArrayList<LogCatParseJob>();
+
+    /**
+     * Each job gets a thread of its own, so that files opened in different panels are parsed at
+     * the same time. Their chunks share {@link #getChunkExecutor()}.
+     */
+    private static synchronized ExecutorService getJobExecutor(){
+    	if (sJobExecutor == null){
+    		sJobExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+    			@Override
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "LogCat parse job");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+    	return sJobExecutor;
+    }
+
+    /**
+     * Run a parsing in the background. Jobs still running in one of the panels of the new job are
+     * cancelled, the new file replaces theirs.
+     */
+    private LogCatParseJob startJob(final LogCatParseJob job, final Runnable parsing){
+    	synchronized (mJobs){
+    		for (LogCatParseJob running : mJobs){
+    			if (running.usesPanelOf(job)){
+    				running.cancel();
+    			}
+    		}
+    		mJobs.add(job);
+    	}
+    	getJobExecutor().execute(new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				parsing.run();
+    			} catch (CancellationException e) {
+    				// cancelled, or replaced by another file
+    			} finally {
+    				job.setDone();
+    				synchronized (mJobs){
+    					mJobs.remove(job);
+    				}
+    			}
+    		}
+    	});
+    	return job;
+    }
+
+    /** Get the jobs still parsing, cancelled ones aside. */
+    public List<LogCatParseJob> getRunningJobs(){
+    	List<LogCatParseJob> jobs = new ArrayList<LogCatParseJob>();
+    	synchronized (mJobs){
+    		for (LogCatParseJob job : mJobs){
+    			if (!job.isCancelled()){
+    				jobs.add(job);
+    			}
+    		}
+    	}
+    	return jobs;
+    }
+
+    /**
+     * Whether a file is still being parsed for a panel, its messages are not all there yet.
+     * Followed files and live logs don't count, they are parsed for as long as they are watched.
+     */
+    public boolean isLoading(int panelID){
+    	synchronized (mJobs){
+    		for (LogCatParseJob job : mJobs){
+    			if (job.usesPanel(panelID) && !job.isCancelled() && !job.isFollowing()){
+    				return true;
+    			}
+    		}
+    	}
+    	return false;
+    }
+
+    public void cancelAllJobs(){
+    	synchronized (mJobs){
+    		for (LogCatParseJob job : mJobs){
+    			job.cancel();
+    		}
+    	}
+    }
+
+    private static void checkCancelled(LogCatParseJob job){
+    	if (job.isCancelled()){
+    		throw new CancellationException();
+    	}
+    }
+
+    /**
+     * Parse a log file in the background, its messages are sent to the listeners for the given
+     * panel as they are parsed.
+     * @return the job parsing the file, or null if there is no such file.
+     */
+    public LogCatParseJob parseLogFile(String filePath, int panelID){
+    	return parseLogFile(filePath, panelID, false);
+    }
+
+    /**
+     * Parse a log file in the background, its messages are sent to the listeners for the given
+     * panel as they are parsed.
+     * @param follow whether to keep watching the file once it is parsed, to parse the messages
+     * appended to it until the job is cancelled
+     * @return the job parsing the file, or null if there is no such file.
+     */
+    public LogCatParseJob parseLogFile(String filePath, final int panelID, final boolean follow){
     	if (filePath == null || "".equals(filePath)){
-    		return;
+    		return null;
     	}
-    	File file = new File(filePath);
+    	final File file = new File(filePath);
     	if (!file.exists()){
-    		return;
+    		return null;
     	}
+    	final LogCatParseJob job = new LogCatParseJob(file, panelID);
+    	return startJob(job, new Runnable() {
+    		@Override
+    		public void run() {
+    			// a followed file that is truncated, or replaced when it is rotated, is parsed again
+    			while (parseLogFile(file, panelID, job, follow)){
+    				job.restart(file.length());
+    			}
+    		}
+    	});
+    }
+
+    /** Interval between two looks at the size of a followed file, in ms. */
+    private static final int FOLLOW_INTERVAL = 500;
+
+    /**
+     * @return true if the file must be parsed again from its start, it was followed and got
+     * shorter.
+     */
+    private boolean parseLogFile(File file, int panelID, LogCatParseJob job, boolean follow){
     	System.gc();
 		try {
-            InputStreamReader isr = new InputStreamReader(new FileInputStream(file), "UTF-8");
-            BufferedReader br = new BufferedReader(isr);
-            List<String> linesList = new ArrayList<String>();
+			// a file parsed before, and not changed since, comes back from its index at once. A
+			// followed file keeps growing, its index would be out of date at once.
+			LogStore indexed = follow ? null : LogStoreIndex.read(file);
+			if (indexed != null){
+				sendLogFileOpenedEvent(job, panelID, file, indexed);
+				job.addProgress(file.length(), indexed.size());
+				indexed.indexText();
+				return false;
+			}
+
+			// compressed files don't grow, they are not followed
+			LogArchive archive = LogArchive.open(file);
+			if (archive != null){
+				try {
+					parseLogArchive(file, archive, panelID, job);
+				} finally {
+					archive.close();
+				}
+				return false;
+			}
+
+			// the format is recognized on the first line that matches one, lines before are dropped
 			PatternType logType = PatternType.UNKNOWN;
-			while (br.ready()){
-				String strLine = br.readLine().trim();
-				
-				if(logType == PatternType.UNKNOWN){
-					logType = PatternRecognition(strLine);
-				}
-				if(logType != PatternType.UNKNOWN
-						&& strLine.length() > 0){
-					linesList.add(strLine);
-				}
-			}
-			
-			List<LogCatMessage> logMessage;
-			switch (logType) {
-			case LOGCAT_V_LONG:
-				logMessage = process_LOGCAT_V_LONG(linesList);
-				break;
-
-			case LOGCAT_V_TIME:
-				logMessage = process_LOGCAT_V_TIME(linesList);
-				break;
-				
-			case LOGCAT_V_PROCESS:
-				logMessage = process_LOGCAT_V_PROCESS(linesList);
-				break;
-			case LOGCAT_V_TAG:
-				logMessage = process_LOGCAT_V_TAG(linesList);
-				break;
-			case LOGCAT_V_THREAD:
-				logMessage = process_LOGCAT_V_THREAD(linesList);
-				break;
-				
-			case LOGCAT_V_THREADTIME:
-				logMessage = process_LOGCAT_V_THREADTIME(linesList);
-				break;
-			case LOGCAT_BRIEF:
-				logMessage = process_LOGCAT_BRIEF(linesList);
-				break;
-			case DDMS_SAVE_FORMAT:
-				logMessage = process_DDMS_SAVE_LOG(linesList);
-				break;
-
-			case UNKNOWN:
-			default:
-				return;
+			long start = 0;
+			long end;
+			LogCatLineReader reader = new LogCatLineReader(file);
+			try {
+				end = reader.getFileSize();
+				while (logType == PatternType.UNKNOWN && reader.nextLine()){
+					// blank lines are skipped without decoding anything
+					if (!reader.isEmpty()){
+						logType = PatternRecognition(reader.getString());
+						start = reader.getLineOffset();
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			job.addProgress(start, 0);
+			if (logType == PatternType.UNKNOWN){
+				if (follow){
+					// a file just created by logcat, wait for its first lines
+					while (file.length() == end){
+						Thread.sleep(FOLLOW_INTERVAL);
+						checkCancelled(job);
+					}
+					return true;
+				}
+				return false;
 			}
-			sendMessageReceivedEvent(
-					logMessage, panelID, file);
+			LogStore store = sendLogFileOpenedEvent(job, panelID, file);
+			// a followed file may be truncated and rewritten, its mapping would then fault: its texts
+			// stay on the heap, as the ones of the ranges appended later
+			LogFileText text = !follow && end >= LAZY_TEXT_FILE_SIZE ? new LogFileText(file) : null;
+			if (follow){
+				// the last line may not be complete yet
+				end = findLastLineEnd(file, start, end);
+			}
+			parseRange(file, text, logType, start, end, store, panelID, job);
+
+			if (follow){
+				return followLogFile(file, panelID, job, store, logType, end);
+			}
+			if (end >= LogStoreIndex.MIN_FILE_SIZE){
+				LogStoreIndex.writeInBackground(store, file);
+			}
+			// index the texts now, not on the first search
+			store.indexText();
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+    }
+
+    /**
+     * Parse a range of a log file, in chunks parsed in parallel and delivered in file order.
+     * @param text the file the message texts are left in, or null to keep them in the heap
+     */
+    private void parseRange(File file, LogFileText text, PatternType logType, long start,
+    		long end, LogStore store, int panelID, LogCatParseJob job)
+    		throws IOException, InterruptedException, ExecutionException{
+    	LinkedList<Future<List<LogCatMessage>>> chunks = new LinkedList<Future<List<LogCatMessage>>>();
+    	LinkedList<Long> chunkSizes = new LinkedList<Long>();
+    	try {
+    		while (start < end || !chunks.isEmpty()){
+    			checkCancelled(job);
+    			while (start < end && chunks.size() < CHUNKS_IN_FLIGHT){
+    				long chunkEnd = findChunkEnd(file, logType, start + CHUNK_SIZE, end);
+    				chunks.add(getChunkExecutor().submit(
+    						new ChunkParser(file, text, logType, start, chunkEnd)));
+    				chunkSizes.add(chunkEnd - start);
+    				start = chunkEnd;
+    			}
+    			List<LogCatMessage> messages = chunks.removeFirst().get();
+    			if (messages.size() > 0){
+    				sendMessageReceivedEvent(job, store, messages, panelID, file);
+    			}
+    			job.addProgress(chunkSizes.removeFirst(), messages.size());
+    		}
+    	} finally {
+    		for (Future<List<LogCatMessage>> chunk : chunks){
+    			chunk.cancel(true);
+    		}
+    	}
+    }
+
+    /**
+     * Watch a file parsed up to {@code end}, and parse the lines appended to it. Only the new
+     * bytes are read, the work depends on how fast the file grows and not on its size.
+     * @return true once the file got shorter: it was truncated, or replaced by a new file when it
+     * was rotated, and must be parsed again from its start.
+     */
+    private boolean followLogFile(File file, int panelID, LogCatParseJob job, LogStore store,
+    		PatternType logType, long end) throws IOException, InterruptedException, ExecutionException{
+    	job.setFollowing(true);
+    	long lastSize = end;
+    	while (true){
+    		Thread.sleep(FOLLOW_INTERVAL);
+    		checkCancelled(job);
+    		long size = file.length();
+    		if (size < end){
+    			return true;
+    		}
+    		boolean growing = size != lastSize;
+    		lastSize = size;
+    		if (size == end){
+    			continue;
+    		}
+
+    		long appendedEnd = findLastLineEnd(file, end, size);
+    		if (logType == PatternType.LOGCAT_V_LONG && growing){
+    			// the lines of the last message may not all be written yet
+    			appendedEnd = findLastLogHeader(file, end, appendedEnd);
+    		}
+    		if (appendedEnd > end){
+    			job.setFileSize(size);
+    			// the file text mapped when the file was opened does not cover the new bytes
+    			parseRange(file, null, logType, end, appendedEnd, store, panelID, job);
+    			end = appendedEnd;
+    		}
+    	}
+    }
+
+    /**
+     * Find the end of the last complete line in a range of a file, looking back from the end of
+     * the range.
+     * @return the offset after the last line end, {@code start} if there is none.
+     */
+    private static long findLastLineEnd(File file, long start, long end) throws IOException{
+    	RandomAccessFile f = new RandomAccessFile(file, "r");
+    	try {
+    		byte[] block = new byte[8192];
+    		long pos = end;
+    		while (pos > start){
+    			int n = (int) Math.min(block.length, pos - start);
+    			f.seek(pos - n);
+    			f.readFully(block, 0, n);
+    			for (int i = n - 1; i >= 0; i--){
+    				if (block[i] == '\n' || block[i] == '\r'){
+    					return pos - n + i + 1;
+    				}
+    			}
+    			pos -= n;
+    		}
+    		return start;
+    	} finally {
+    		f.close();
+    	}
+    }
+
+    /**
+     * Find the last {@code -v long} header line in a range of a file.
+     * @return the offset of the line, {@code start} if there is none after it.
+     */
+    private long findLastLogHeader(File file, long start, long end) throws IOException{
+    	long lastHeader = start;
+    	LogCatLineReader reader = new LogCatLineReader(file, start, end);
+    	try {
+    		while (reader.nextLine()){
+    			if (!reader.isEmpty() && isLogHeader(reader, reader.getString())){
+    				lastHeader = reader.getLineOffset();
+    			}
+    		}
+    	} finally {
+    		reader.close();
+    	}
+    	return lastHeader;
+    }
+
+    /** Number of lines a live log keeps when no other limit is given. */
+    public static final int DEFAULT_LIVE_MAX_LINES = 200000;
+
+    /** Size of the buffer a live log is read in, it grows for longer lines. */
+    private static final int LIVE_BUFFER_SIZE = 64 * 1024;
+
+    /** Minimum interval between two batches of a live log, in ms. */
+    private static final int LIVE_BATCH_INTERVAL = 100;
+
+    /**
+     * Parse a live log in the background, such as {@code adb logcat -v threadtime} piped to the
+     * standard input. Its messages are sent to the listeners for the given panel as they come, in
+     * a store that keeps only the last {@code maxLines} of them. The job runs until the end of
+     * the stream, or until it is cancelled and the next bytes come; the stream is closed then.
+     * @param name name the log is shown under
+     * @return the job parsing the stream.
+     */
+    public LogCatParseJob parseLiveStream(final InputStream in, String name, final int panelID,
+    		final int maxLines){
+    	final LogCatParseJob job = new LogCatParseJob(new File(name), panelID);
+    	return startJob(job, new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				parseLiveStream(in, job.getFile(), panelID, maxLines, job);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    			} finally {
+    				try {
+    					in.close();
+    				} catch (IOException e) {
+    					e.printStackTrace();
+    				}
+    			}
+    		}
+    	});
+    }
+
+    /**
+     * Connect to a live log served on a socket, {@code adb logcat -v threadtime | nc -l 5555}
+     * for instance, and parse it in the background like {@link #parseLiveStream}.
+     * @return the job parsing the log.
+     */
+    public LogCatParseJob parseLiveSocket(final String host, final int port, final int panelID,
+    		final int maxLines){
+    	final LogCatParseJob job = new LogCatParseJob(new File(host + ":" + port), panelID);
+    	return startJob(job, new Runnable() {
+    		@Override
+    		public void run() {
+    			Socket socket = new Socket();
+    			try {
+    				socket.connect(new InetSocketAddress(host, port));
+    				// reads time out now and then, to see whether the job was cancelled
+    				socket.setSoTimeout(FOLLOW_INTERVAL);
+    				parseLiveStream(socket.getInputStream(), job.getFile(), panelID, maxLines, job);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    			} finally {
+    				try {
+    					socket.close();
+    				} catch (IOException e) {
+    					e.printStackTrace();
+    				}
+    			}
+    		}
+    	});
+    }
+
+    /**
+     * Parse the lines of a live log as they come. What is read is parsed in batches, one every
+     * {@link #LIVE_BATCH_INTERVAL} ms at most, and a batch holds whole lines only: the end of the
+     * last line, or for {@code -v long} the last message, waits for the next batch.
+     */
+    private void parseLiveStream(InputStream in, File source, int panelID, int maxLines,
+    		LogCatParseJob job) throws IOException, InterruptedException{
+    	job.setFileSize(-1);
+    	job.setFollowing(true);
+    	LogStore store = sendLogFileOpenedEvent(job, panelID, source,
+    			new LogStore(System.currentTimeMillis(), maxLines));
+
+    	PatternType logType = PatternType.UNKNOWN;
+    	byte[] buffer = new byte[LIVE_BUFFER_SIZE];
+    	int length = 0;
+    	boolean endOfStream = false;
+    	long lastBatch = 0;
+    	while (!endOfStream){
+    		if (length == buffer.length){
+    			// a line longer than the buffer
+    			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    		}
+    		int n = readLive(in, buffer, length, job);
+    		if (n < 0){
+    			endOfStream = true;
+    		} else {
+    			length += n;
+    			// let the lines pile up a little, the panel is not updated for each one
+    			long wait = lastBatch + LIVE_BATCH_INTERVAL - System.currentTimeMillis();
+    			if (wait > 0){
+    				Thread.sleep(wait);
+    			}
+    			while (length < buffer.length && in.available() > 0){
+    				n = in.read(buffer, length, buffer.length - length);
+    				if (n < 0){
+    					endOfStream = true;
+    					break;
+    				}
+    				length += n;
+    			}
+    		}
+    		lastBatch = System.currentTimeMillis();
+    		checkCancelled(job);
+
+    		int end = endOfStream ? length : findLastLineEnd(buffer, length);
+    		int start = 0;
+    		ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, end);
+    		if (logType == PatternType.UNKNOWN){
+    			// the format is recognized on the first line that matches one, lines before are dropped
+    			start = end;
+    			LogCatLineReader reader = new LogCatLineReader(bytes);
+    			while (reader.nextLine()){
+    				if (!reader.isEmpty()){
+    					logType = PatternRecognition(reader.getString());
+    					if (logType != PatternType.UNKNOWN){
+    						start = (int) reader.getLineOffset();
+    						break;
+    					}
+    				}
+    			}
+    		}
+    		if (logType == PatternType.LOGCAT_V_LONG && !endOfStream){
+    			// the lines of the last message may not all be there yet
+    			bytes.position(start);
+    			end = start + findLastLogHeader(bytes.slice());
+    		}
+
+    		int count = 0;
+    		if (end > start){
+    			bytes.limit(end);
+    			bytes.position(start);
+    			List<LogCatMessage> messages = new ChunkParser(bytes.slice(), logType).call();
+    			if (messages.size() > 0){
+    				sendMessageReceivedEvent(job, store, messages, panelID, source);
+    			}
+    			count = messages.size();
+    		}
+    		job.addProgress(end, count);
+    		System.arraycopy(buffer, end, buffer, 0, length - end);
+    		length -= end;
+    	}
+    }
+
+    /**
+     * Read what a live log has, waiting for it to come. A socket read that times out only checks
+     * whether the job was cancelled, and waits again.
+     * @return the number of bytes read, -1 at the end of the stream.
+     */
+    private static int readLive(InputStream in, byte[] buffer, int offset, LogCatParseJob job)
+    		throws IOException{
+    	while (true){
+    		try {
+    			return in.read(buffer, offset, buffer.length - offset);
+    		} catch (SocketTimeoutException e){
+    			checkCancelled(job);
+    		}
+    	}
+    }
+
+    /** Find the end of the last complete line in the first bytes of a buffer, 0 if there is none. */
+    private static int findLastLineEnd(byte[] buffer, int length){
+    	for (int i = length - 1; i >= 0; i--){
+    		if (buffer[i] == '\n' || buffer[i] == '\r'){
+    			return i + 1;
+    		}
+    	}
+    	return 0;
+    }
+
+    /**
+     * Parse a gzip'd or zipped log. It can't be mapped, so it is decompressed one chunk at a time
+     * and the chunks are parsed from memory. Message texts always stay in the heap.
+     */
+    private void parseLogArchive(File file, LogArchive archive, int panelID, LogCatParseJob job)
+    		throws IOException, InterruptedException, ExecutionException{
+    	job.setFileSize(archive.getSize());
+
+    	// the format is recognized on the first line that matches one, lines before are dropped
+    	PatternType logType = PatternType.UNKNOWN;
+    	ByteBuffer bytes = archive.nextChunk(CHUNK_SIZE);
+    	while (bytes != null){
+    		LogCatLineReader reader = new LogCatLineReader(bytes);
+    		while (logType == PatternType.UNKNOWN && reader.nextLine()){
+    			if (!reader.isEmpty()){
+    				logType = PatternRecognition(reader.getString());
+    			}
+    		}
+    		if (logType != PatternType.UNKNOWN){
+    			bytes.position((int) reader.getLineOffset());
+    			bytes = bytes.slice();
+    			break;
+    		}
+    		bytes = archive.nextChunk(CHUNK_SIZE);
+    	}
+    	if (logType == PatternType.UNKNOWN){
+    		job.addProgress(archive.getPosition(), 0);
+    		return;
+    	}
+    	LogStore store = sendLogFileOpenedEvent(job, panelID, file);
+
+    	LinkedList<Future<List<LogCatMessage>>> chunks = new LinkedList<Future<List<LogCatMessage>>>();
+    	long size = 0;
+    	long reported = 0;
+    	try {
+    		while (bytes != null || !chunks.isEmpty()){
+    			checkCancelled(job);
+    			while (bytes != null && chunks.size() < CHUNKS_IN_FLIGHT){
+    				if (logType == PatternType.LOGCAT_V_LONG){
+    					// a message spans several lines, the next chunk starts with the last one
+    					int lastHeader = findLastLogHeader(bytes);
+    					if (lastHeader == 0 && !archive.isEndOfStream()){
+    						// the message may go on after the chunk, read more of it
+    						archive.pushBack(bytes.limit());
+    						bytes = archive.nextChunk(CHUNK_SIZE);
+    						continue;
+    					}
+    					if (lastHeader > 0){
+    						archive.pushBack(bytes.limit() - lastHeader);
+    						bytes.limit(lastHeader);
+    					}
+    				}
+    				size += bytes.limit();
+    				chunks.add(getChunkExecutor().submit(new ChunkParser(bytes, logType)));
+    				bytes = archive.nextChunk(CHUNK_SIZE);
+    			}
+    			List<LogCatMessage> messages = chunks.removeFirst().get();
+    			if (messages.size() > 0){
+    				sendMessageReceivedEvent(job, store, messages, panelID, file);
+    			}
+    			long position = archive.getPosition();
+    			job.addProgress(position - reported, messages.size());
+    			reported = position;
+    		}
+    	} finally {
+    		for (Future<List<LogCatMessage>> chunk : chunks){
+    			chunk.cancel(true);
+    		}
+    	}
+
+    	if (size >= LogStoreIndex.MIN_FILE_SIZE){
+    		LogStoreIndex.writeInBackground(store, file);
+    	}
+    	store.indexText();
+    }
+
+    /**
+     * Find the last {@code -v long} header line of a chunk, looking back from its end.
+     * @return the index of the line in the chunk, 0 if there is none.
+     */
+    private int findLastLogHeader(ByteBuffer bytes) throws IOException{
+    	int lineEnd = bytes.limit();
+    	for (int i = lineEnd - 1; i > 0; i--){
+    		byte b = bytes.get(i - 1);
+    		if (b != '\n' && b != '\r'){
+    			continue;
+    		}
+    		if (bytes.get(i) == '['){
+    			ByteBuffer line = bytes.duplicate();
+    			line.limit(lineEnd);
+    			line.position(i);
+    			LogCatLineReader reader = new LogCatLineReader(line.slice());
+    			if (reader.nextLine() && isLogHeader(reader, reader.getString())){
+    				return i;
+    			}
+    		}
+    		lineEnd = i - 1;
+    	}
+    	return 0;
+    }
+
+    /**
+     * Find where the chunk that should end around {@code pos} really ends: after the end of the
+     * line {@code pos} falls in, or for {@code -v long} in front of the next header line since a
+     * message spans several lines.
+     */
+    private long findChunkEnd(File file, PatternType logType, long pos, long end) throws IOException{
+    	if (pos >= end){
+    		return end;
+    	}
+    	LogCatLineReader reader = new LogCatLineReader(file, pos, end);
+    	try {
+    		// the rest of the line pos falls in belongs to the current chunk
+    		reader.nextLine();
+    		if (logType != PatternType.LOGCAT_V_LONG){
+    			return reader.getPosition();
+    		}
+    		while (reader.nextLine()){
+    			if (!reader.isEmpty() && isLogHeader(reader, reader.getString())){
+    				return reader.getLineOffset();
+    			}
+    		}
+    		return end;
+    	} finally {
+    		reader.close();
+    	}
+    }
+
+    /** Parse the lines of one chunk of a log file. */
+    private class ChunkParser implements Callable<List<LogCatMessage>> {
+    	private final File mFile;
+    	private final ByteBuffer mBytes;
+    	private final LogFileText mText;
+    	private final PatternType mLogType;
+    	private final long mStart;
+    	private final long mEnd;
+
+    	public ChunkParser(File file, LogFileText text, PatternType logType, long start, long end) {
+    		mFile = file;
+    		mBytes = null;
+    		mText = text;
+    		mLogType = logType;
+    		mStart = start;
+    		mEnd = end;
+    	}
+
+    	/** Parse a chunk already in memory, read from a compressed file. */
+    	public ChunkParser(ByteBuffer bytes, PatternType logType) {
+    		mFile = null;
+    		mBytes = bytes;
+    		mText = null;
+    		mLogType = logType;
+    		mStart = 0;
+    		mEnd = bytes.limit();
+    	}
+
+    	@Override
+    	public List<LogCatMessage> call() throws IOException {
+    		LogCatLineReader reader = mBytes != null ? new LogCatLineReader(mBytes)
+    				: new LogCatLineReader(mFile, mStart, mEnd);
+    		try {
+    			if (!isTokenized(mLogType)){
+    				List<String> linesList = new ArrayList<String>();
+    				while (reader.nextLine()){
+    					if (!reader.isEmpty()){
+    						linesList.add(reader.getString());
+    					}
+    				}
+    				return processLines(mLogType, linesList);
+    			}
+
+    			LogCatLineTokenizer tokenizer = new LogCatLineTokenizer(mText);
+    			List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+    			while (reader.nextLine()){
+    				if (reader.isEmpty()){
+    					continue;
+    				}
+    				LogCatMessage m = tokenizeLine(mLogType, tokenizer, reader);
+    				if (m != null){
+    					messages.add(m);
+    				} else {
+    					messages.addAll(processLines(mLogType,
+    							Collections.singletonList(reader.getString())));
+    				}
+    			}
+    			return messages;
+    		} finally {
+    			reader.close();
+    		}
+    	}
+    }
+
+    /**
+     * Check whether the current line is a {@code -v long} header, looking at its bytes first so
+     * that the regex only runs on lines that can be one.
+     */
+    private boolean isLogHeader(LogCatLineReader reader, String line){
+    	return reader.byteAt(0) == '[' && reader.byteAt(reader.length() - 1) == ']'
+    			&& sLogHeaderPattern.matcher(line).matches();
+    }
+
+    /** Whether {@link LogCatLineTokenizer} handles the format. */
+    private static boolean isTokenized(PatternType logType){
+    	return logType == PatternType.LOGCAT_V_THREADTIME || logType == PatternType.LOGCAT_V_TIME
+    			|| logType == PatternType.LOGCAT_BRIEF;
+    }
+
+    /**
+     * Parse the current line without regex.
+     * @return the message, or null if the line must go through the regex of its format.
+     */
+    private static LogCatMessage tokenizeLine(PatternType logType, LogCatLineTokenizer tokenizer,
+    		LogCatLineReader reader){
+    	switch (logType) {
+    	case LOGCAT_V_THREADTIME:
+    		return tokenizer.parseThreadtime(reader);
+    	case LOGCAT_V_TIME:
+    		return tokenizer.parseTime(reader);
+    	case LOGCAT_BRIEF:
+    		return tokenizer.parseBrief(reader);
+    	default:
+    		return null;
+    	}
+    }
+
+    private List<LogCatMessage> processLines(PatternType logType, List<String> linesList){
+		switch (logType) {
+		case LOGCAT_V_LONG:
+			return process_LOGCAT_V_LONG(linesList);
+		case LOGCAT_V_TIME:
+			return process_LOGCAT_V_TIME(linesList);
+		case LOGCAT_V_PROCESS:
+			return process_LOGCAT_V_PROCESS(linesList);
+		case LOGCAT_V_TAG:
+			return process_LOGCAT_V_TAG(linesList);
+		case LOGCAT_V_THREAD:
+			return process_LOGCAT_V_THREAD(linesList);
+		case LOGCAT_V_THREADTIME:
+			return process_LOGCAT_V_THREADTIME(linesList);
+		case LOGCAT_BRIEF:
+			return process_LOGCAT_BRIEF(linesList);
+		case DDMS_SAVE_FORMAT:
+			return process_DDMS_SAVE_LOG(linesList);
+		case UNKNOWN:
+		default:
+			return new ArrayList<LogCatMessage>(0);
 		}
     }
     
@@ -556,27 +1305,408 @@ public final class LogCatMessageParser {
 		return messages;
 	}
 
-	public void parseLogFolder(String folderPath){
+	/**
+	 * Parse the main, events and radio log files of a folder in the background. The files are
+	 * parsed at the same time, one job each, and each one is sent to the listeners for its panel.
+	 * @return the jobs parsing the files, empty if there is no such folder.
+	 */
+	public List<LogCatParseJob> parseLogFolder(String folderPath){
+		return parseLogFolder(folderPath, false);
+	}
+
+	/**
+	 * Parse the main, events and radio log files of a folder in the background.
+	 * @param follow whether to keep watching the files, see {@link #parseLogFile(String, int, boolean)}
+	 * @return the jobs parsing the files, empty if there is no such folder.
+	 */
+	public List<LogCatParseJob> parseLogFolder(String folderPath, boolean follow){
+    	List<LogCatParseJob> jobs = new ArrayList<LogCatParseJob>();
     	if (folderPath == null || "".equals(folderPath)){
-    		return;
+    		return jobs;
     	}
     	File fileFolder = new File(folderPath);
     	if (!fileFolder.exists() || !fileFolder.isDirectory()){
-    		return;
+    		return jobs;
     	}
 
-    	System.gc();
     	File[] files = fileFolder.listFiles();
     	for(File file : files){
+    		if (getRotatedBase(file) != null){
+    			// parsed along with the file it was rotated from
+    			continue;
+    		}
+    		if (LogStoreIndex.isIndexFile(file)){
+    			// the index of a log of the folder, named after it
+    			continue;
+    		}
+    		// a later file for the same panel cancels the job of the previous one
     		if (file.getName().toLowerCase().indexOf("main") != -1){
-    			parseLogFile(file.getAbsolutePath(), UIThread.PANEL_ID_MAIN);
+    			jobs.add(parseLogFileOrSet(file, UIThread.PANEL_ID_MAIN, follow));
     		} else if (file.getName().toLowerCase().indexOf("event") != -1){
-    			parseLogFile(file.getAbsolutePath(), UIThread.PANEL_ID_EVENTS);
+    			jobs.add(parseLogFileOrSet(file, UIThread.PANEL_ID_EVENTS, follow));
     		} else if (file.getName().toLowerCase().indexOf("radio") != -1){
-    			parseLogFile(file.getAbsolutePath(), UIThread.PANEL_ID_RADIO);
+    			jobs.add(parseLogFileOrSet(file, UIThread.PANEL_ID_RADIO, follow));
     		}
     	}
+    	return jobs;
     }
+
+	/** Parse a file of a folder, with its older segments if it was rotated and is not followed. */
+	private LogCatParseJob parseLogFileOrSet(File file, int panelID, boolean follow){
+		if (!follow && getRotatedSegments(file).size() > 1){
+			return parseRotatedLog(file.getAbsolutePath(), panelID);
+		}
+		return parseLogFile(file.getAbsolutePath(), panelID, follow);
+	}
+
+	/**
+	 * Parse a set of rotated log files in the background, the way {@code logcat -r -n} leaves
+	 * them: {@code main.txt} and its older segments, {@code main.txt.1} to {@code main.txt.N}.
+	 * The messages of the segments are merged by time into one store, and sent to the listeners
+	 * for the given panel as the merge goes.
+	 * <p/>
+	 * The merge is lazy: a segment is only opened once the merge reaches its time range, and it is
+	 * parsed only a few chunks ahead of the merge. Segments that don't overlap are thus parsed one
+	 * after the other, segments that do are parsed and merged at the same time.
+	 * @param filePath any file of the set
+	 * @return the job parsing the set, or null if there is no such file.
+	 */
+	public LogCatParseJob parseRotatedLog(String filePath, final int panelID){
+		if (filePath == null || "".equals(filePath)){
+			return null;
+		}
+		File file = new File(filePath);
+		if (!file.exists()){
+			return null;
+		}
+		final List<File> segments = getRotatedSegments(file);
+		// the set goes by the name of its current file
+		File current = segments.get(segments.size() - 1);
+		final LogCatParseJob job = new LogCatParseJob(current, panelID);
+		return startJob(job, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					parseRotatedLog(segments, panelID, job);
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+	}
+
+	/** Pattern of the name of a rotated segment, the name of its current file and a number. */
+	private static final Pattern sRotatedNamePattern = Pattern.compile("(.+)\\.(\\d+)");
+
+	/**
+	 * Get the file a rotated segment was rotated from, {@code main.txt} for {@code main.txt.3}.
+	 * @return null if the file is not a segment, or if there is no such file.
+	 */
+	private static File getRotatedBase(File file){
+		Matcher m = sRotatedNamePattern.matcher(file.getName());
+		if (!m.matches()){
+			return null;
+		}
+		File base = new File(file.getParentFile(), m.group(1));
+		return base.exists() ? base : null;
+	}
+
+	/**
+	 * Find the segments of the rotated set a file belongs to, from the oldest to the current file:
+	 * {@code main.txt.N} down to {@code main.txt.1}, then {@code main.txt}.
+	 */
+	private static List<File> getRotatedSegments(File file){
+		File base = getRotatedBase(file);
+		if (base == null){
+			base = file;
+		}
+		TreeMap<Integer, File> numbered = new TreeMap<Integer, File>();
+		File[] files = base.getAbsoluteFile().getParentFile().listFiles();
+		if (files != null){
+			for (File f : files){
+				Matcher m = sRotatedNamePattern.matcher(f.getName());
+				if (m.matches() && m.group(1).equals(base.getName()) && m.group(2).length() < 9){
+					numbered.put(Integer.valueOf(m.group(2)), f);
+				}
+			}
+		}
+		// the higher the number, the older the segment
+		List<File> segments = new ArrayList<File>(numbered.descendingMap().values());
+		segments.add(base);
+		return segments;
+	}
+
+	/** Number of messages the merge of a rotated set sends at once. */
+	private static final int MERGE_BATCH_SIZE = 64 * 1024;
+
+	/** Bytes read at the start and at the end of a segment, to find its time range. */
+	private static final int SEGMENT_PROBE_SIZE = 64 * 1024;
+
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+	/** Span of a month in the time keys of the merge, months are taken as 32 days. */
+	private static final long MONTH_SPAN = 32 * DAY_MILLIS;
+	private static final long YEAR_SPAN = 13 * MONTH_SPAN;
+
+	private void parseRotatedLog(List<File> files, int panelID, LogCatParseJob job)
+			throws IOException, InterruptedException, ExecutionException{
+		long size = 0;
+		for (File file : files){
+			size += file.length();
+		}
+		job.setFileSize(size);
+
+		// find the format and the time range of each segment, reading only a few lines of it
+		List<RotatedSegment> segments = new ArrayList<RotatedSegment>();
+		for (File file : files){
+			checkCancelled(job);
+			RotatedSegment segment = new RotatedSegment(segments.size(), file, job);
+			if (segment.open()){
+				segments.add(segment);
+			} else {
+				job.addProgress(file.length(), 0);
+			}
+		}
+		if (segments.isEmpty()){
+			return;
+		}
+		// logcat prints no year, it changes when the month goes back, within or between segments
+		int year = 0;
+		int lastMonth = 0;
+		for (RotatedSegment segment : segments){
+			if (segment.mFirstMonth != 0){
+				if (lastMonth != 0 && segment.mFirstMonth <= lastMonth - 6){
+					year++;
+				}
+				segment.setFirstYear(year);
+				if (segment.mTailMonth <= segment.mFirstMonth - 6){
+					year++;
+				}
+				lastMonth = segment.mTailMonth;
+			}
+		}
+
+		File current = files.get(files.size() - 1);
+		LogStore store = sendLogFileOpenedEvent(job, panelID, current);
+		PriorityQueue<RotatedSegment> queue = new PriorityQueue<RotatedSegment>(segments.size(),
+				new Comparator<RotatedSegment>() {
+			@Override
+			public int compare(RotatedSegment s1, RotatedSegment s2) {
+				// on equal times, the older segment first
+				if (s1.mKey != s2.mKey){
+					return s1.mKey < s2.mKey ? -1 : 1;
+				}
+				return s1.mIndex - s2.mIndex;
+			}
+		});
+		int nextSegment = 0;
+		List<LogCatMessage> batch = new ArrayList<LogCatMessage>();
+		try {
+			while (true){
+				checkCancelled(job);
+				// a segment joins the merge once the merge reaches its first message
+				while (nextSegment < segments.size() && (queue.isEmpty()
+						|| queue.peek().mKey > segments.get(nextSegment).mKey)){
+					RotatedSegment segment = segments.get(nextSegment++);
+					if (segment.next()){
+						queue.add(segment);
+					}
+				}
+				RotatedSegment segment = queue.poll();
+				if (segment == null){
+					break;
+				}
+				batch.add(segment.mMessage);
+				if (segment.next()){
+					queue.add(segment);
+				}
+				if (batch.size() == MERGE_BATCH_SIZE){
+					sendMessageReceivedEvent(job, store, batch, panelID, current);
+					job.addProgress(0, batch.size());
+					batch = new ArrayList<LogCatMessage>();
+				}
+			}
+			if (batch.size() > 0){
+				sendMessageReceivedEvent(job, store, batch, panelID, current);
+				job.addProgress(0, batch.size());
+			}
+		} finally {
+			for (RotatedSegment segment : segments){
+				segment.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Time of a {@code "MM-dd HH:mm:ss.SSS"} time stamp as a key that grows with the time within a
+	 * year, months being taken as {@link #MONTH_SPAN}.
+	 * @return -1 if the time has another format.
+	 */
+	private static long getTimeOfYear(String time){
+		if (time == null || time.length() != 18 || time.charAt(2) != '-' || time.charAt(5) != ' '
+				|| time.charAt(8) != ':' || time.charAt(11) != ':' || time.charAt(14) != '.'){
+			return -1;
+		}
+		int month = getNumber(time, 0, 2);
+		int day = getNumber(time, 3, 5);
+		int hour = getNumber(time, 6, 8);
+		int minute = getNumber(time, 9, 11);
+		int second = getNumber(time, 12, 14);
+		int millis = getNumber(time, 15, 18);
+		if (month < 1 || month > 12 || day < 0 || hour < 0 || minute < 0 || second < 0 || millis < 0){
+			return -1;
+		}
+		return (((month * 32L + day) * 24 + hour) * 60 + minute) * 60000 + second * 1000 + millis;
+	}
+
+	/** Value of the digits from start to end, -1 if there is anything else. */
+	private static int getNumber(String s, int start, int end){
+		int value = 0;
+		for (int i = start; i < end; i++){
+			char c = s.charAt(i);
+			if (c < '0' || c > '9'){
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * A segment of a rotated set, read by the merge one message at a time. Its chunks are parsed
+	 * in parallel, a few ahead of the merge, like the chunks of a single file.
+	 */
+	private class RotatedSegment {
+		private final int mIndex;
+		private final File mFile;
+		private final LogCatParseJob mJob;
+		private LogFileText mText;
+		private PatternType mLogType = PatternType.UNKNOWN;
+		private long mPos;
+		private long mEnd;
+
+		private final LinkedList<Future<List<LogCatMessage>>> mChunks =
+				new LinkedList<Future<List<LogCatMessage>>>();
+		private final LinkedList<Long> mChunkSizes = new LinkedList<Long>();
+		private List<LogCatMessage> mMessages = Collections.emptyList();
+		private int mNext;
+
+		/** Month of the first and of the last time of the segment, 0 if it has no time. */
+		private int mFirstMonth;
+		private int mTailMonth;
+		private long mFirstTime;
+
+		/** The current message, and the key it is merged by. */
+		private LogCatMessage mMessage;
+		private long mKey = Long.MIN_VALUE;
+		private int mYear;
+		private int mLastMonth;
+
+		RotatedSegment(int index, File file, LogCatParseJob job){
+			mIndex = index;
+			mFile = file;
+			mJob = job;
+		}
+
+		/**
+		 * Find the format of the segment and its time range.
+		 * @return false if the segment has no message in a known format.
+		 */
+		boolean open() throws IOException{
+			LogCatLineReader reader = new LogCatLineReader(mFile);
+			try {
+				mEnd = reader.getFileSize();
+				while (mLogType == PatternType.UNKNOWN && reader.nextLine()){
+					if (!reader.isEmpty()){
+						mLogType = PatternRecognition(reader.getString());
+						mPos = reader.getLineOffset();
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			if (mLogType == PatternType.UNKNOWN){
+				return false;
+			}
+			mJob.addProgress(mPos, 0);
+			mText = mEnd >= LAZY_TEXT_FILE_SIZE ? new LogFileText(mFile) : null;
+
+			long headEnd = findChunkEnd(mFile, mLogType, mPos + SEGMENT_PROBE_SIZE, mEnd);
+			for (LogCatMessage m : new ChunkParser(mFile, null, mLogType, mPos, headEnd).call()){
+				long time = getTimeOfYear(m.getTime());
+				if (time >= 0){
+					mFirstTime = time;
+					mFirstMonth = (int) (time / MONTH_SPAN);
+					break;
+				}
+			}
+			mTailMonth = mFirstMonth;
+			if (mFirstMonth != 0 && mEnd > headEnd){
+				long tailStart = findChunkEnd(mFile, mLogType,
+						Math.max(headEnd, mEnd - SEGMENT_PROBE_SIZE), mEnd);
+				for (LogCatMessage m : new ChunkParser(mFile, null, mLogType, tailStart, mEnd).call()){
+					long time = getTimeOfYear(m.getTime());
+					if (time >= 0){
+						mTailMonth = (int) (time / MONTH_SPAN);
+					}
+				}
+			}
+			return true;
+		}
+
+		/** Set the year of the first time of the segment, counted from the oldest segment. */
+		void setFirstYear(int year){
+			mYear = year;
+			mLastMonth = mFirstMonth;
+			mKey = year * YEAR_SPAN + mFirstTime;
+		}
+
+		/**
+		 * Move to the next message. A message without a time keeps the key of the one before it,
+		 * it stays after it in the merge.
+		 * @return false at the end of the segment.
+		 */
+		boolean next() throws IOException, InterruptedException, ExecutionException{
+			while (mNext >= mMessages.size()){
+				while (mPos < mEnd && mChunks.size() < CHUNKS_IN_FLIGHT){
+					long chunkEnd = findChunkEnd(mFile, mLogType, mPos + CHUNK_SIZE, mEnd);
+					mChunks.add(getChunkExecutor().submit(
+							new ChunkParser(mFile, mText, mLogType, mPos, chunkEnd)));
+					mChunkSizes.add(chunkEnd - mPos);
+					mPos = chunkEnd;
+				}
+				if (mChunks.isEmpty()){
+					mMessages = Collections.emptyList();
+					mMessage = null;
+					return false;
+				}
+				mMessages = mChunks.removeFirst().get();
+				mNext = 0;
+				mJob.addProgress(mChunkSizes.removeFirst(), 0);
+			}
+			mMessage = mMessages.get(mNext++);
+			long time = getTimeOfYear(mMessage.getTime());
+			if (time >= 0){
+				int month = (int) (time / MONTH_SPAN);
+				if (month <= mLastMonth - 6){
+					mYear++;
+				}
+				mLastMonth = month;
+				mKey = mYear * YEAR_SPAN + time;
+			}
+			return true;
+		}
+
+		void cancel(){
+			for (Future<List<LogCatMessage>> chunk : mChunks){
+				chunk.cancel(true);
+			}
+			mChunks.clear();
+		}
+	}
     
     /**
      * Add to list of message event listeners.
@@ -590,91 +1720,279 @@ public final class LogCatMessageParser {
         mLogCatMessageListeners.remove(l);
     }
 
-    private void sendMessageReceivedEvent(List<LogCatMessage> messages, int panelID, File file) {
-        for (ILogCatMessageEventListener l : mLogCatMessageListeners) {
-            l.messageReceived(messages, panelID, file);
+    /** Tell the listeners a file is being opened, its messages go to a new empty store. */
+    private LogStore sendLogFileOpenedEvent(LogCatParseJob job, int panelID, File file) {
+        // logcat has no year in its time stamps, the store guesses it from the file
+        return sendLogFileOpenedEvent(job, panelID, file, new LogStore(file.lastModified()));
+    }
+
+    /**
+     * Events are sent holding the lock of the job, so that a job cancelled because another file
+     * was opened in its panel can't send anything after the events of the new file.
+     */
+    private LogStore sendLogFileOpenedEvent(LogCatParseJob job, int panelID, File file,
+            LogStore store) {
+        synchronized (job) {
+            checkCancelled(job);
+            for (ILogCatMessageEventListener l : mLogCatMessageListeners) {
+                l.logFileOpened(panelID, file, store);
+            }
+        }
+        return store;
+    }
+
+    /** Append a batch of messages to the store of the file, then tell the listeners about it. */
+    private void sendMessageReceivedEvent(LogCatParseJob job, LogStore store,
+            List<LogCatMessage> messages, int panelID, File file) {
+        checkCancelled(job);
+        store.addAll(messages);
+        synchronized (job) {
+            checkCancelled(job);
+            for (ILogCatMessageEventListener l : mLogCatMessageListeners) {
+                l.messageReceived(messages, panelID, file);
+            }
         }
     }
 
-    //test with android 4.0
-	public void parseDumpstateFile(String filePath) {
+	/**
+	 * Parse the main, events and radio logs of a bugreport in the background.
+	 * @return the job parsing the file, or null if there is no such file.
+	 */
+	public LogCatParseJob parseDumpstateFile(String filePath) {
 		if (filePath == null || "".equals(filePath)) {
-			return;
+			return null;
 		}
-		File file = new File(filePath);
+		final File file = new File(filePath);
 		if (!file.exists()) {
-			return;
+			return null;
+		}
+		final LogCatParseJob job = new LogCatParseJob(file, UIThread.PANEL_ID_MAIN,
+				UIThread.PANEL_ID_EVENTS, UIThread.PANEL_ID_RADIO);
+		return startJob(job, new Runnable() {
+			@Override
+			public void run() {
+				parseDumpstateFile(file, job);
+			}
+		});
+	}
+
+	/**
+	 * Titles of the bugreport sections holding the main, events and radio logs. The logcat
+	 * command line follows the title, {@code "------ SYSTEM LOG (logcat -v threadtime -d *:v) ------"}
+	 * on older releases and {@code "------ SYSTEM LOG (logcat -v threadtime -v printable -v uid -d *:v) ------"}
+	 * on newer ones.
+	 */
+	private static final String[] DUMPSTATE_LOG_SECTIONS = {
+		"SYSTEM LOG", "EVENT LOG", "RADIO LOG",
+	};
+
+	private static final int[] DUMPSTATE_LOG_PANELS = {
+		UIThread.PANEL_ID_MAIN, UIThread.PANEL_ID_EVENTS, UIThread.PANEL_ID_RADIO,
+	};
+
+	private static final String DUMPSTATE_SECTION_PREFIX = "------ ";
+	private static final String DUMPSTATE_LOGCAT_END = "[logcat:";
+
+	/** {@link #getDumpstateSection(LogCatLineReader)} of a line that starts no section. */
+	private static final int NO_SECTION = -2;
+	/** {@link #getDumpstateSection(LogCatLineReader)} of a line that starts a section without logs. */
+	private static final int OTHER_SECTION = -1;
+
+	/** A chunk of a log section of a bugreport, submitted to the chunk parsers. */
+	private static class DumpstateChunk {
+		final Future<List<LogCatMessage>> mMessages;
+		final int mSection;
+		/** How far the bugreport was read when the chunk was submitted. */
+		final long mPosition;
+
+		DumpstateChunk(Future<List<LogCatMessage>> messages, int section, long position) {
+			mMessages = messages;
+			mSection = section;
+			mPosition = position;
 		}
+	}
+
+	/**
+	 * Read a bugreport once, sending the lines of each log section to the chunk parsers while
+	 * the rest of the file is still being read.
+	 */
+	private void parseDumpstateFile(File file, LogCatParseJob job) {
 		System.gc();
+		DumpstateSplitter splitter = null;
 		try {
-			FileReader fr = new FileReader(file);
-			BufferedReader br = new BufferedReader(fr);
-			List<String> linesListMain = new ArrayList<String>();
-			List<String> linesListEvents = new ArrayList<String>();
-			List<String> linesListRadio = new ArrayList<String>();
-			int state = 0;
-			boolean finish = false;
-			while (br.ready()) {
-				String strLine = br.readLine().trim();
-				switch (state) {
-				case 0:
-					if (strLine.startsWith("------ SYSTEM LOG (logcat -v threadtime")) {
-						state = 1;
+			LogArchive archive = LogArchive.open(file);
+			if (archive != null) {
+				try {
+					job.setFileSize(archive.getSize());
+					job.setCrashReports(archive.getCrashReports());
+					splitter = new DumpstateSplitter(job, file, null, archive);
+					ByteBuffer bytes;
+					while ((bytes = archive.nextChunk(CHUNK_SIZE)) != null) {
+						splitter.split(new LogCatLineReader(bytes), bytes);
 					}
-					break;
-				case 1:// main
-					if (strLine.startsWith("------ EVENT LOG (logcat -b events -v threadtime")) {
-						state = 2;
-						continue;
-					}
-					linesListMain.add(strLine);
-					break;
-				case 2:// events
-					if (strLine.startsWith("------ RADIO LOG (logcat -b radio -v threadtime")) {
-						state = 3;
-						continue;
-					}
-					linesListEvents.add(strLine);
-					break;
-				case 3:// radio
-					if (strLine.startsWith("[logcat:")) {
-						state = 4;
-						continue;
-					}
-					linesListRadio.add(strLine);
-					break;
-				case 4:// finish
-					finish = true;
-					break;
-				default:
-					assert (false);
-					break;
+					splitter.finish(archive.getPosition());
+				} finally {
+					archive.close();
 				}
+				return;
+			}
 
-				if (finish) {
-					break;
+			LogCatLineReader reader = new LogCatLineReader(file);
+			try {
+				long end = reader.getFileSize();
+				LogFileText text = end >= LAZY_TEXT_FILE_SIZE ? new LogFileText(file) : null;
+				splitter = new DumpstateSplitter(job, file, text, null);
+				splitter.split(reader, null);
+				splitter.finish(end);
+			} finally {
+				reader.close();
+			}
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (splitter != null) {
+				splitter.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Splits a bugreport into its sections. The lines of a log section are a byte range of the
+	 * file, or of a chunk of a compressed bugreport, that is cut into chunks like log files are.
+	 */
+	private class DumpstateSplitter {
+		private final LogCatParseJob mJob;
+		private final File mFile;
+		private final LogFileText mText;
+		private final LogArchive mArchive;
+		private final LogStore[] mStores = new LogStore[DUMPSTATE_LOG_SECTIONS.length];
+		private final LinkedList<DumpstateChunk> mChunks = new LinkedList<DumpstateChunk>();
+		private int mSection = OTHER_SECTION;
+		private long mDelivered;
+
+		/**
+		 * @param text the file the message texts are left in, or null
+		 * @param archive the compressed bugreport the lines come from, or null if they are read
+		 * from the file
+		 */
+		DumpstateSplitter(LogCatParseJob job, File file, LogFileText text, LogArchive archive) {
+			mJob = job;
+			mFile = file;
+			mText = text;
+			mArchive = archive;
+		}
+
+		/**
+		 * Split the lines of a reader. The current section goes on from the previous call.
+		 * @param bytes the buffer the reader reads, or null if it reads the file
+		 */
+		void split(LogCatLineReader reader, ByteBuffer bytes)
+				throws IOException, InterruptedException, ExecutionException {
+			long chunkStart = reader.getPosition();
+			while (reader.nextLine()) {
+				int next = getDumpstateSection(reader);
+				if (next != NO_SECTION) {
+					submit(bytes, chunkStart, reader.getLineOffset());
+					mSection = next;
+					chunkStart = reader.getPosition();
+					if (mSection >= 0 && mStores[mSection] == null) {
+						mStores[mSection] = sendLogFileOpenedEvent(mJob,
+								DUMPSTATE_LOG_PANELS[mSection], mFile);
+					}
+				} else if (reader.getPosition() - chunkStart >= CHUNK_SIZE) {
+					submit(bytes, chunkStart, reader.getPosition());
+					chunkStart = reader.getPosition();
 				}
+				deliver(false);
 			}
+			submit(bytes, chunkStart, reader.getFileSize());
+		}
 
-			if (linesListMain.size() > 0) {
-				List<LogCatMessage> logMessageMain = process_LOGCAT_V_THREADTIME(linesListMain);
-				sendMessageReceivedEvent(logMessageMain, UIThread.PANEL_ID_MAIN, file);
+		/**
+		 * Deliver the chunks left once the whole bugreport is split.
+		 * @param end the number of bytes read
+		 */
+		void finish(long end) throws InterruptedException, ExecutionException {
+			deliver(true);
+			mJob.addProgress(end - mDelivered, 0);
+		}
+
+		void cancel() {
+			for (DumpstateChunk chunk : mChunks) {
+				chunk.mMessages.cancel(true);
 			}
+		}
 
-			if (linesListEvents.size() > 0) {
-				List<LogCatMessage> logMessageEvents = process_LOGCAT_V_THREADTIME(linesListEvents);
-				sendMessageReceivedEvent(logMessageEvents, UIThread.PANEL_ID_EVENTS, file);
+		private void submit(ByteBuffer bytes, long start, long end) {
+			if (mSection < 0 || end <= start) {
+				return;
+			}
+			ChunkParser parser;
+			if (bytes == null) {
+				parser = new ChunkParser(mFile, mText, PatternType.LOGCAT_V_THREADTIME, start, end);
+			} else {
+				ByteBuffer chunk = bytes.duplicate();
+				chunk.limit((int) end);
+				chunk.position((int) start);
+				parser = new ChunkParser(chunk.slice(), PatternType.LOGCAT_V_THREADTIME);
 			}
+			mChunks.add(new DumpstateChunk(getChunkExecutor().submit(parser), mSection,
+					mArchive != null ? mArchive.getPosition() : end));
+		}
 
-			if (linesListRadio.size() > 0) {
-				List<LogCatMessage> logMessageRadio = process_LOGCAT_V_THREADTIME(linesListRadio);
-				sendMessageReceivedEvent(logMessageRadio, UIThread.PANEL_ID_RADIO, file);
+		/**
+		 * Send the messages of the chunks parsed to the panels of their section.
+		 * @param all whether to wait for all the chunks, else only for the ones over
+		 * {@link #CHUNKS_IN_FLIGHT}
+		 */
+		private void deliver(boolean all) throws InterruptedException, ExecutionException {
+			while (!mChunks.isEmpty() && (all || mChunks.size() >= CHUNKS_IN_FLIGHT
+					|| mChunks.getFirst().mMessages.isDone())) {
+				checkCancelled(mJob);
+				DumpstateChunk chunk = mChunks.removeFirst();
+				List<LogCatMessage> messages = chunk.mMessages.get();
+				if (messages.size() > 0) {
+					sendMessageReceivedEvent(mJob, mStores[chunk.mSection], messages,
+							DUMPSTATE_LOG_PANELS[chunk.mSection], mFile);
+				}
+				mJob.addProgress(chunk.mPosition - mDelivered, messages.size());
+				mDelivered = chunk.mPosition;
 			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
+	}
 
+	/**
+	 * Tell which section of a bugreport the current line starts.
+	 * @return the index of the log section in {@link #DUMPSTATE_LOG_SECTIONS},
+	 * {@link #OTHER_SECTION} for another section or the end of a log, or {@link #NO_SECTION}.
+	 */
+	private static int getDumpstateSection(LogCatLineReader reader) {
+		// log lines start with a digit, only look at lines starting like a section header
+		if (reader.isEmpty()) {
+			return NO_SECTION;
+		}
+		byte first = reader.byteAt(0);
+		if (first == '[') {
+			return reader.getString().startsWith(DUMPSTATE_LOGCAT_END) ? OTHER_SECTION : NO_SECTION;
+		}
+		if (first != '-') {
+			return NO_SECTION;
+		}
+		String line = reader.getString();
+		if (!line.startsWith(DUMPSTATE_SECTION_PREFIX)) {
+			return NO_SECTION;
+		}
+		for (int i = 0; i < DUMPSTATE_LOG_SECTIONS.length; i++) {
+			if (line.startsWith(DUMPSTATE_LOG_SECTIONS[i], DUMPSTATE_SECTION_PREFIX.length())) {
+				return i;
+			}
+		}
+		return OTHER_SECTION;
 	}
 }
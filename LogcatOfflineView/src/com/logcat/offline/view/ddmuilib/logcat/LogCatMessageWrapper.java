@@ -2,34 +2,63 @@ package com.logcat.offline.view.ddmuilib.logcat;
 
 import com.android.ddmuilib.logcat.LogCatMessage;
 
+/**
+ * A row of a {@link LogStore}. It holds nothing but the row, the message and the highlight flags
+ * are read from and written to the store.
+ */
 public class LogCatMessageWrapper {
-	private final LogCatMessage mLogMsg;
-	private boolean mHightlight;
-    private boolean mSearchHightlight;
+	private final LogStore mStore;
+	private final int mRow;
 
-	public LogCatMessageWrapper(LogCatMessage logMsg) {
-		this.mLogMsg = logMsg;
-		mHightlight = false;
-		mSearchHightlight = false;
+	public LogCatMessageWrapper(LogStore store, int row) {
+		mStore = store;
+		mRow = row;
+	}
+
+	public LogStore getStore() {
+		return mStore;
+	}
+
+	public int getRow() {
+		return mRow;
 	}
 
 	public boolean isSearchHightlight() {
-        return mSearchHightlight;
+        return mStore.isSearchHighlight(mRow);
     }
 
     public void setSearchHightlight(boolean highlight) {
-        mSearchHightlight = highlight;
+        mStore.setSearchHighlight(mRow, highlight);
     }
 
     public LogCatMessage getLogCatMessage() {
-		return mLogMsg;
+		return mStore.getLogCatMessage(mRow);
 	}
 
 	public boolean isHighlight() {
-		return mHightlight;
+		return mStore.isHighlight(mRow);
 	}
 
 	public void setHighlight(boolean highlight) {
-		mHightlight = highlight;
+		mStore.setHighlight(mRow, highlight);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof LogCatMessageWrapper)) {
+			return false;
+		}
+		LogCatMessageWrapper w = (LogCatMessageWrapper) o;
+		return w.mStore == mStore && w.mRow == mRow;
+	}
+
+	@Override
+	public int hashCode() {
+		return mStore.hashCode() * 31 + mRow;
+	}
+
+	@Override
+	public String toString() {
+		return getLogCatMessage().toString();
 	}
 }
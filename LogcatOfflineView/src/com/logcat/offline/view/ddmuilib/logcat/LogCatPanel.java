@@ -19,8 +19,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.MenuManager;
@@ -84,7 +88,6 @@ import com.android.ddmuilib.logcat.ILogCatMessageSelectionListener;
 import com.android.ddmuilib.logcat.LogCatFilterContentProvider;
 import com.android.ddmuilib.logcat.LogCatFilterLabelProvider;
 import com.android.ddmuilib.logcat.LogCatMessage;
-import com.android.ddmuilib.logcat.LogCatViewerFilter;
 
 /**
  * LogCatPanel displays a table listing the logcat messages.
@@ -98,6 +101,8 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
 
     private static final String RESET_TAG_FILTER = "Reset Tag Filter";
 
+    private static final String RESET_TIME_FILTER = "Reset Time Filter";
+
     /** Preference key to use for storing list of logcat filters. */
     public static final String LOGCAT_FILTERS_LIST = "logcat.view.filters.list";
 
@@ -140,6 +145,8 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
     private static final String ACTION_SHOW_PID = "Show Selected PID(s)";
     private static final String ACTION_HIDE_PID = "Hide Selected PID(s)";
     private static final String ACTION_HIGHLIGHT_PID = "High Light Selected PID(s)";
+    private static final String ACTION_SHOW_FROM_TIME = "Show Messages From Selected Time";
+    private static final String ACTION_SHOW_UNTIL_TIME = "Show Messages Until Selected Time";
 
     private ToolItemAction[] mLogLevelActions;
     private String[] mLogLevelIcons = { "v.png", //$NON-NLS-1S
@@ -151,6 +158,23 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
 
     private String mCurrentFilterLogLevel = LogLevel.values()[0].getStringValue();
 
+    /** Milliseconds the live filter waits for the typing to pause before it is applied. */
+    private static final int LIVE_FILTER_DELAY = 150;
+
+    /** Number of filters applied lately kept compiled, with the rows they matched. */
+    private static final int COMPILED_FILTERS_CACHE_SIZE = 16;
+
+    /** Filters applied lately, by what they were compiled from, the least recently used first. */
+    private final Map<List<Object>, LogCatCompiledFilter> mCompiledFilters =
+        new LinkedHashMap<List<Object>, LogCatCompiledFilter>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, LogCatCompiledFilter> eldest) {
+                return size() > COMPILED_FILTERS_CACHE_SIZE;
+            }
+        };
+
     private static final int[] WEIGHTS_SHOW_FILTERS = new int[] { 15, 85 };
     private static final int[] WEIGHTS_LOGCAT_ONLY = new int[] { 0, 100 };
 
@@ -169,8 +193,18 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
     private List<String> mSelectedTagList;
     private List<String> mPIDList = new ArrayList<String>();
     private List<String> mTagList = new ArrayList<String>();
+    private HashSet<String> mPIDSet = new HashSet<String>();
+    private HashSet<String> mTagSet = new HashSet<String>();
+    private long mTimeFrom = Long.MIN_VALUE;
+    private long mTimeTo = Long.MAX_VALUE;
+    /** Number of rows of the store already added to the unread counts. */
+    private int mReceivedRows;
+    /** Number of tags of the store already added to the tag list. */
+    private int mReceivedTags;
 
     private TableViewer mViewer;
+    /** Filters the rows itself, the viewer has no filters. */
+    private LogCatMessageContentProvider mContentProvider;
     private Action mShowSelectedTag;
     private Action mHideSelectedTag;
     private Action mHighlightSelectedTag;
@@ -179,6 +213,9 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
     private Action mHideSelectedPID;
     private Action mHighlightSelectedPID;
     private Action mResetPID;
+    private Action mShowFromTime;
+    private Action mShowUntilTime;
+    private Action mResetTime;
 
     private String mLogFileExportFolder;
 
@@ -190,6 +227,9 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
 
     private LogCatMessageLabelProvider mLogCatMessageLabelProvider;
 
+    private TableColumn mTimeColumn;
+    private String mTimeColumnText;
+
     private SashForm mSash;
 
     private int mPanelID;
@@ -489,7 +529,8 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         mLiveFilterText.addModifyListener(new ModifyListener() {
             @Override
             public void modifyText(ModifyEvent arg0) {
-                updateAppliedFilters();
+                // wait for the typing to pause before filtering
+                Display.getDefault().timerExec(LIVE_FILTER_DELAY, mLiveFilterUpdater);
             }
         });
 
@@ -575,15 +616,12 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         if (mViewer.getTable().getItemCount() < 2) {
             return;
         }
-        int index = mViewer.getTable().getSelectionIndex();
+        int index = Math.min(mViewer.getTable().getSelectionIndex(), mContentProvider.getRowCount());
         // no select, ignore
-        List<LogCatMessageWrapper> all = getAllLogcatMessageUnfiltered();
+        LogStore store = getLogStore();
         for (int i = index; i > 0; i--) {
-            LogCatMessageWrapper data = all.get(i - 1);
-            if (data == null) {
-                continue;
-            }
-            boolean hit = data.isHighlight() || data.isSearchHightlight();
+            int row = mContentProvider.getRow(i - 1);
+            boolean hit = store.isHighlight(row) || store.isSearchHighlight(row);
             if (hit) {
                 mViewer.getTable().setSelection(i - 1);
                 if (i > 5) {
@@ -601,17 +639,15 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
             return;
         }
         int index = mViewer.getTable().getSelectionIndex();
-        List<LogCatMessageWrapper> all = getAllLogcatMessageUnfiltered();
-        for (int i = index; i < all.size() - 1; i++) {
-            LogCatMessageWrapper data = all.get(i + 1);
-            if (data == null) {
-                continue;
-            }
-            boolean hit = data.isHighlight() || data.isSearchHightlight();
+        int count = mContentProvider.getRowCount();
+        LogStore store = getLogStore();
+        for (int i = index; i < count - 1; i++) {
+            int row = mContentProvider.getRow(i + 1);
+            boolean hit = store.isHighlight(row) || store.isSearchHighlight(row);
             if (hit) {
                 mViewer.getTable().setSelection(i + 1);
-                if (i > all.size() - 5) {
-                    mViewer.getTable().setSelection(all.size() - 1);
+                if (i > count - 5) {
+                    mViewer.getTable().setSelection(count - 1);
                 } else {
                     mViewer.getTable().setTopIndex(i + 1);
                 }
@@ -697,6 +733,17 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         }
     }
 
+    /** Whether a message is selected, without filtering the messages again to find which one. */
+    private boolean hasSelectedLogCatMessage() {
+        Table table = mViewer.getTable();
+        for (int i : table.getSelectionIndices()) {
+            if (i < table.getItemCount()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private List<LogCatMessageWrapper> getSelectedLogCatMessages() {
         Object input = mViewer.getInput();
         if (input == null) {
@@ -706,49 +753,20 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         int[] indices = table.getSelectionIndices();
         Arrays.sort(indices); // Table.getSelectionIndices() does not specify an order
 
-        // Get items from the table's input as opposed to getting each table item's data.
+        // Get items from the content provider as opposed to getting each table item's data.
         // Retrieving table item's data can return NULL in case of a virtual table if the item
         // has not been displayed yet.
-        List<LogCatMessageWrapper> filteredItems = applyCurrentFilters((List<?>) input);
+        int count = mContentProvider.getRowCount();
         List<LogCatMessageWrapper> selectedMessages = new ArrayList<LogCatMessageWrapper>(indices.length);
         for (int i : indices) {
-            if (i < filteredItems.size()) {
-                LogCatMessageWrapper m = filteredItems.get(i);
-                selectedMessages.add(m);
+            if (i < count) {
+                selectedMessages.add(mContentProvider.getElement(i));
             }
         }
 
         return selectedMessages;
     }
 
-    private List<LogCatMessageWrapper> applyCurrentFilters(List<?> msgList) {
-        Object[] items = msgList.toArray();
-        List<LogCatMessageWrapper> filteredItems = new ArrayList<LogCatMessageWrapper>();
-        List<LogCatViewerFilter> filters = getFiltersToApply();
-
-        for (Object item : items) {
-            if (!(item instanceof LogCatMessageWrapper)) {
-                continue;
-            }
-            if (!isMessageFiltered((LogCatMessageWrapper) item, filters)) {
-                filteredItems.add((LogCatMessageWrapper) item);
-            }
-        }
-
-        return filteredItems;
-    }
-
-    private boolean isMessageFiltered(LogCatMessageWrapper msg, List<LogCatViewerFilter> filters) {
-        for (LogCatViewerFilter f : filters) {
-            if (!f.select(null, null, msg)) {
-                // message does not make it through this filter
-                return true;
-            }
-        }
-
-        return false;
-    }
-
     private void createLogcatViewTable(Composite parent) {
         // The SWT.VIRTUAL bit causes the table to be rendered faster. However it makes all rows
         // to be of the same height, thereby clipping any rows with multiple lines of text.
@@ -793,7 +811,8 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
 
         mViewer.getTable().setLinesVisible(true); /* zebra stripe the table */
         mViewer.getTable().setHeaderVisible(true);
-        mViewer.setContentProvider(new LogCatMessageContentProvider());
+        mContentProvider = new LogCatMessageContentProvider();
+        mViewer.setContentProvider(mContentProvider);
         WrappingToolTipSupport.enableFor(mViewer, ToolTip.NO_RECREATE);
 
         // Set the row height to be sufficient enough to display the current font.
@@ -806,6 +825,9 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
             }
         });
 
+        mTimeColumn = mViewer.getTable().getColumn(1);
+        mTimeColumnText = properties[1];
+
         // Update the label provider whenever the text column's width changes
         TableColumn textColumn = mViewer.getTable().getColumn(properties.length - 1);
         textColumn.addControlListener(new ControlAdapter() {
@@ -825,10 +847,16 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         mViewer.getTable().addSelectionListener(new SelectionListener() {
             @Override
             public void widgetSelected(SelectionEvent e) {
-                mIsSynFromHere = true;
-                String time = getSelectedLogCatMessages().get(0).getLogCatMessage().getTime();
-                if (time != null && time.length() > 10) {// 04-08 13:13:43.851
-                    LogCatSyncManager.getInstance().syncTime(time);
+                List<LogCatMessageWrapper> selectedItems = getSelectedLogCatMessages();
+                if (selectedItems == null || selectedItems.size() == 0) {
+                    return;
+                }
+                updateTimeDelta(selectedItems);
+                LogCatMessageWrapper first = selectedItems.get(0);
+                long timestamp = first.getStore().getTimestamp(first.getRow());
+                if (timestamp != LogCatMessage.NO_TIMESTAMP) {
+                    mIsSynFromHere = true;
+                    LogCatSyncManager.getInstance().syncTime(timestamp);
                 }
             }
 
@@ -843,6 +871,24 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         // initDoubleClickListener();
     }
 
+    /**
+     * Show the time elapsed between the first and the last selected messages in the header of the
+     * time column.
+     */
+    private void updateTimeDelta(List<LogCatMessageWrapper> selectedItems) {
+        String text = mTimeColumnText;
+        if (selectedItems.size() > 1) {
+            LogCatMessageWrapper first = selectedItems.get(0);
+            LogCatMessageWrapper last = selectedItems.get(selectedItems.size() - 1);
+            long from = first.getStore().getTimestamp(first.getRow());
+            long to = last.getStore().getTimestamp(last.getRow());
+            if (from != LogCatMessage.NO_TIMESTAMP && to != LogCatMessage.NO_TIMESTAMP) {
+                text = String.format("%s (%+.3fs)", mTimeColumnText, (to - from) / 1000.0);
+            }
+        }
+        mTimeColumn.setText(text);
+    }
+
     private void createViewMenu() {
         MenuManager mmg = new MenuManager();
         Menu menu = mmg.createContextMenu(mViewer.getTable());
@@ -852,6 +898,7 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
             public void run() {
                 mResetTag.run();
                 mResetPID.run();
+                mResetTime.run();
                 mResetHighLight.run();
                 mClearSearch.run();
                 updateAppliedFilters();
@@ -888,7 +935,7 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
                             }
                         }
                         mViewer.getTable().setRedraw(true);
-                        mViewer.refresh();
+                        mContentProvider.refresh();
                     }
                 }
             }
@@ -1022,6 +1069,45 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         mmg.add(mShowSelectedPID);
         mmg.add(mHideSelectedPID);
 
+        mShowFromTime = new Action(ACTION_SHOW_FROM_TIME) {
+            @Override
+            public void run() {
+                long timestamp = getSelectedTimestamp();
+                if (timestamp == LogCatMessage.NO_TIMESTAMP) {
+                    return;
+                }
+                mTimeFrom = timestamp;
+                setText(ACTION_SHOW_FROM_TIME + " : " + LogStore.formatTime(timestamp));
+                updateAppliedFilters();
+            }
+        };
+        mShowUntilTime = new Action(ACTION_SHOW_UNTIL_TIME) {
+            @Override
+            public void run() {
+                long timestamp = getSelectedTimestamp();
+                if (timestamp == LogCatMessage.NO_TIMESTAMP) {
+                    return;
+                }
+                mTimeTo = timestamp;
+                setText(ACTION_SHOW_UNTIL_TIME + " : " + LogStore.formatTime(timestamp));
+                updateAppliedFilters();
+            }
+        };
+        mResetTime = new Action(RESET_TIME_FILTER) {
+            @Override
+            public void run() {
+                mTimeFrom = Long.MIN_VALUE;
+                mTimeTo = Long.MAX_VALUE;
+                mShowFromTime.setText(ACTION_SHOW_FROM_TIME);
+                mShowUntilTime.setText(ACTION_SHOW_UNTIL_TIME);
+                updateAppliedFilters();
+            }
+        };
+        mmg.add(new Separator());
+        mmg.add(mResetTime);
+        mmg.add(mShowFromTime);
+        mmg.add(mShowUntilTime);
+
         mHighlightSelectedTag = new Action(ACTION_HIGHLIGHT_TAG) {
             @Override
             public void run() {
@@ -1047,7 +1133,7 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
                         logCatMessageWrapper.setHighlight(true);
                     }
                 }
-                mViewer.refresh();
+                mContentProvider.refresh();
             }
         };
         mHighlightSelectedPID = new Action(ACTION_HIGHLIGHT_PID) {
@@ -1076,7 +1162,7 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
                         logCatMessageWrapper.setHighlight(true);
                     }
                 }
-                mViewer.refresh();
+                mContentProvider.refresh();
             }
         };
 
@@ -1096,12 +1182,22 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         mViewer.getTable().setMenu(menu);
     }
 
+    /** Time stamp of the first selected message. */
+    private long getSelectedTimestamp() {
+        List<LogCatMessageWrapper> selectedItems = getSelectedLogCatMessages();
+        if (selectedItems == null || selectedItems.size() == 0) {
+            return LogCatMessage.NO_TIMESTAMP;
+        }
+        LogCatMessageWrapper first = selectedItems.get(0);
+        return first.getStore().getTimestamp(first.getRow());
+    }
+
     private void cleanBackground() {
         List<LogCatMessageWrapper> filteredItems = getAllLogcatMessageUnfiltered();
         for (LogCatMessageWrapper logCatMessageWrapper : filteredItems) {
             logCatMessageWrapper.setHighlight(false);
         }
-        mViewer.refresh();
+        mContentProvider.refresh();
     }
 
     private void cleanSearchBackground() {
@@ -1109,19 +1205,24 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         for (LogCatMessageWrapper logCatMessageWrapper : filteredItems) {
             logCatMessageWrapper.setSearchHightlight(false);
         }
-        mViewer.refresh();
+        mContentProvider.refresh();
+    }
+
+    public int getPanelID() {
+        return mPanelID;
+    }
+
+    /** The store of the file shown in the panel, null if there is none. */
+    public LogStore getLogStore() {
+        return (LogStore) mViewer.getInput();
     }
 
-    @SuppressWarnings("unchecked")
     private List<LogCatMessageWrapper> getAllLogcatMessageUnfiltered() {
         Object input = mViewer.getInput();
-        List<?> list = (List<?>) input;
-        if (input == null || list.size() == 0 || !(list.get(0) instanceof LogCatMessageWrapper)) {
+        if (input == null) {
             return new ArrayList<LogCatMessageWrapper>(0);
-        } else {
-            List<LogCatMessageWrapper> filteredItems = (List<LogCatMessageWrapper>) list;
-            return filteredItems;
         }
+        return ((LogStore) input).asList();
     }
 
     /**
@@ -1198,7 +1299,7 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         mShouldScrollToLatestLog = scroll;
 
         if (scroll) {
-            mViewer.refresh();
+            mContentProvider.refresh();
             scrollToLatestLog();
         }
     }
@@ -1292,45 +1393,131 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         mDeleteFilterToolItem.setEnabled(en);
     }
 
+    /** Applies the live filter once the user stopped typing for {@link #LIVE_FILTER_DELAY}. */
+    private final Runnable mLiveFilterUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (mViewer.getTable().isDisposed()) {
+                return;
+            }
+            updateAppliedFilters();
+        }
+    };
+
     private void updateAppliedFilters() {
-        List<LogCatViewerFilter> filters = getFiltersToApply();
-        mViewer.getTable().setRedraw(false);// performance issue
-        mViewer.setFilters(filters.toArray(new LogCatViewerFilter[filters.size()]));
-        mViewer.getTable().setRedraw(true);
-        /*
-         * whenever filters are changed, the number of displayed logs changes drastically. Display the latest log in
-         * such a situation.
-         */
-        if (mViewer.getInput() == null) {
-            return;
+        // a live filter change waiting for the typing to pause is applied now as well
+        Display.getDefault().timerExec(-1, mLiveFilterUpdater);
+        LogCatCompiledFilter filter = getCompiledFilter();
+        // large stores are filtered in the background, the previous rows are shown meanwhile
+        mContentProvider.setFilter(filter, new Runnable() {
+            @Override
+            public void run() {
+                if (mViewer.getTable().isDisposed()) {
+                    return;
+                }
+                mViewer.getTable().setRedraw(false);// performance issue
+                mContentProvider.refresh();
+                mViewer.getTable().setRedraw(true);
+                /*
+                 * whenever filters are changed, the number of displayed logs changes drastically. Display the latest
+                 * log in such a situation.
+                 */
+                if (mViewer.getInput() == null) {
+                    return;
+                }
+                if (!hasSelectedLogCatMessage())
+                    scrollToLatestLog();
+            }
+        });
+    }
+
+    /**
+     * The filters to apply compiled, taken from the recent ones when nothing they were compiled from changed since:
+     * going back to a recent filter then needs neither compiling the query again, nor filtering all the messages.
+     */
+    private LogCatCompiledFilter getCompiledFilter() {
+        List<Object> key = Arrays.<Object> asList(getSelectedSavedFilter(), mLiveFilterText.getText(),
+            mCurrentFilterLogLevel, copyOf(mSelectedPIDList), copyOf(mSelectedTagList), mTimeFrom, mTimeTo);
+        LogCatCompiledFilter filter = mCompiledFilters.get(key);
+        if (filter == null || filter.isCancelled()) {
+            filter = LogCatCompiledFilter.compile(getFiltersToApply());
+            mCompiledFilters.put(key, filter);
         }
-        if (getSelectedLogCatMessages() == null || getSelectedLogCatMessages().size() == 0)
-            scrollToLatestLog();
+        return filter;
+    }
+
+    private static List<String> copyOf(List<String> list) {
+        return list == null ? null : new ArrayList<String>(list);
     }
 
-    private List<LogCatViewerFilter> getFiltersToApply() {
+    private List<LogCatFilter> getFiltersToApply() {
         /* list of filters to apply = saved filter + live filters */
-        List<LogCatViewerFilter> filters = new ArrayList<LogCatViewerFilter>();
+        List<LogCatFilter> filters = new ArrayList<LogCatFilter>();
         filters.add(getSelectedSavedFilter());
         filters.addAll(getCurrentLiveFilters());
         return filters;
     }
 
-    private List<LogCatViewerFilter> getCurrentLiveFilters() {
-        List<LogCatViewerFilter> liveFilters = new ArrayList<LogCatViewerFilter>();
+    private List<LogCatFilter> getCurrentLiveFilters() {
+        return LogCatFilter.fromString(mLiveFilterText.getText(), /* current query */
+            LogLevel.getByString(mCurrentFilterLogLevel), mSelectedPIDList, mSelectedTagList, /* current log level */
+            mTimeFrom, mTimeTo);
+    }
 
-        List<LogCatFilter> liveFilterSettings = LogCatFilter.fromString(mLiveFilterText.getText(), /* current query */
-            LogLevel.getByString(mCurrentFilterLogLevel), mSelectedPIDList, mSelectedTagList); /* current log level */
-        for (LogCatFilter s : liveFilterSettings) {
-            liveFilters.add(new LogCatViewerFilter(s));
-        }
+    private LogCatFilter getSelectedSavedFilter() {
+        int index = getSelectedSavedFilterIndex();
+        return mLogCatFilters.get(index);
+    }
 
-        return liveFilters;
+    /**
+     * Start showing a new log file: drop the messages of the previous file and show the store the following batches
+     * will be appended to. Implements {@link ILogCatMessageEventListener#logFileOpened()}.
+     */
+    public void logFileOpened(int panelID, final File file, final LogStore store) {
+        if (panelID != mPanelID) {
+            return;
+        }
+        // files are parsed in the background, the panel only changes in the UI thread
+        Display.getDefault().asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                if (mViewer.getTable().isDisposed()) {
+                    return;
+                }
+                showLogFile(file, store);
+            }
+        });
     }
 
-    private LogCatViewerFilter getSelectedSavedFilter() {
-        int index = getSelectedSavedFilterIndex();
-        return new LogCatViewerFilter(mLogCatFilters.get(index));
+    private void showLogFile(File file, LogStore store) {
+        // change file name
+        mPannelName = file.getName();
+        mLiveFilterText.setMessage("<" + mPannelName + "> " + DEFAULT_SEARCH_MESSAGE);
+        mLiveFilterText.setToolTipText("File path: " + file.getAbsolutePath() + "\n" + DEFAULT_SEARCH_TOOLTIP);
+
+        mPIDSet.clear();
+        mTagSet.clear();
+        mPIDList = new ArrayList<String>();
+        mTagList = new ArrayList<String>();
+        resetUI();// !!!
+        // times of the previous file mean nothing for the new one
+        mTimeFrom = Long.MIN_VALUE;
+        mTimeTo = Long.MAX_VALUE;
+        mShowFromTime.setText(ACTION_SHOW_FROM_TIME);
+        mShowUntilTime.setText(ACTION_SHOW_UNTIL_TIME);
+        mShouldScrollToLatestLog = true;
+        mReceivedRows = 0;
+        mReceivedTags = 0;
+        // the filters compiled for the previous file keep its rows, and its store with them
+        mCompiledFilters.clear();
+        mUnreadCountFilters.clear();
+        mViewer.setInput(store);
+
+        // a store loaded from an index already holds the whole file
+        if (store.size() > 0) {
+            addReceivedRows(store);
+            refreshFiltersTable();
+        }
     }
 
     /**
@@ -1343,22 +1530,32 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         if (panelID != mPanelID) {
             return;
         }
-        // change file name
-        mPannelName = file.getName();
-        mLiveFilterText.setMessage("<" + mPannelName + "> " + DEFAULT_SEARCH_MESSAGE);
-        mLiveFilterText.setToolTipText("File path: " + file.getAbsolutePath() + "\n" + DEFAULT_SEARCH_TOOLTIP);
 
-        List<LogCatMessageWrapper> wrapperList = new ArrayList<LogCatMessageWrapper>();
-        for (int i = 0; i < receivedMessages.size(); i++) {
-            wrapperList.add(new LogCatMessageWrapper(receivedMessages.get(i)));
-        }
-        setPIDAndTagList(wrapperList);
-        resetUI();// !!!
-        mViewer.setInput(wrapperList);
-        refreshLogCatTable();
-        updateUnreadCount(wrapperList);
-        refreshFiltersTable();
+        Display.getDefault().asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                if (mViewer.getTable().isDisposed()) {
+                    return;
+                }
+                Object input = mViewer.getInput();
+                if (input == null) {
+                    return;
+                }
+                addReceivedRows((LogStore) input);
+                refreshLogCatTable();
+                refreshFiltersTable();
+            }
+        });
+    }
 
+    /** Take the rows appended to the store since the last call into account. */
+    private void addReceivedRows(LogStore store) {
+        int size = store.size();
+        // a bounded store may have dropped some of them already
+        int from = Math.max(mReceivedRows, store.getFirstRow());
+        mReceivedRows = size;
+        addPIDAndTagList(store);
+        updateUnreadCount(store, from, size);
     }
 
     /**
@@ -1371,63 +1568,101 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
         mSelectedPIDList = null; // PID filter will drop
     }
 
-    public void synSelected(String synTime) {
+    public void synSelected(long timestamp) {
         if (!mIsSynFromHere) {
             Object input = mViewer.getInput();
             if (input == null) {
                 return;
             }
-            int low = 0;
-            int high = mViewer.getTable().getItemCount() - 1;
-            int mid = (low + high) / 2;
-            List<LogCatMessageWrapper> filteredItems = applyCurrentFilters((List<?>) input);
-            while (low <= high) {
-                mid = (low + high) / 2;
-                /*
-                 * if (mid == 0){ mid = 1; }
-                 */
-                String localTime = filteredItems.get(mid).getLogCatMessage().getTime();
-                if (synTime.compareTo(localTime) < 0) {
-                    high = mid - 1;
-                } else if (synTime.compareTo(localTime) > 0) {
-                    low = mid + 1;
-                } else {
-                    break;
-                }
-            }
+            int mid = mContentProvider.indexOfTime(timestamp);
             mViewer.getTable().setSelection(mid);
             mViewer.getTable().setTopIndex(mid - 6);
         }
         mIsSynFromHere = false;
     }
 
-    private void setPIDAndTagList(List<LogCatMessageWrapper> receivedMessages) {
-        // mPIDList = new ArrayList<String>();
-        // mTagList = new ArrayList<String>();
-        HashSet<String> pidSet = new HashSet<String>();
-        HashSet<String> tagSet = new HashSet<String>();
-        for (LogCatMessageWrapper msg : receivedMessages) {
-            pidSet.add(msg.getLogCatMessage().getPid());
-            tagSet.add(msg.getLogCatMessage().getTag());
+    /** Add the PIDs and tags of the store, taken from its pools rather than from every row. */
+    private void addPIDAndTagList(LogStore store) {
+        int pidCount = mPIDSet.size();
+        int tagCount = mTagSet.size();
+        for (int pidId : store.getPidIds()) {
+            mPIDSet.add(store.getPidById(pidId));
+        }
+        // tags are never removed from the pool, only the new ones are left to add
+        int tags = store.getTagCount();
+        for (int tagId = mReceivedTags; tagId < tags; tagId++) {
+            mTagSet.add(store.getTagById(tagId));
+        }
+        mReceivedTags = tags;
+        if (mPIDSet.size() != pidCount) {
+            mPIDList = new ArrayList<String>(mPIDSet);
+        }
+        if (mTagSet.size() != tagCount) {
+            mTagList = new ArrayList<String>(mTagSet);
         }
-        mPIDList = new ArrayList<String>(pidSet);
-        mTagList = new ArrayList<String>(tagSet);
     }
 
     /**
      * When new messages are received, and they match a saved filter, update the unread count associated with that
-     * filter.
+     * filter. The rows are counted once for all the filters, in the background, and the counts are added in the UI
+     * thread.
      * 
-     * @param receivedMessages list of new messages received
+     * @param from first row received
+     * @param to row after the last one received
      */
-    private void updateUnreadCount(List<LogCatMessageWrapper> receivedMessages) {
+    private void updateUnreadCount(final LogStore store, final int from, final int to) {
+        final List<LogCatFilter> filters = new ArrayList<LogCatFilter>();
+        final List<LogCatCompiledFilter> compiled = new ArrayList<LogCatCompiledFilter>();
         for (int i = 0; i < mLogCatFilters.size(); i++) {
             if (i == mCurrentSelectedFilterIndex) {
                 /* no need to update unread count for currently selected filter */
                 continue;
             }
-            mLogCatFilters.get(i).updateUnreadCount(receivedMessages);
+            LogCatFilter f = mLogCatFilters.get(i);
+            filters.add(f);
+            compiled.add(getUnreadCountFilter(f));
+        }
+        if (filters.isEmpty()) {
+            return;
+        }
+        // the compiled filters are only used by this thread, one count after the other
+        LogCatMessageContentProvider.getFilterExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final int[] counts = LogCatCompiledFilter.count(compiled, store, from, to);
+                Display.getDefault().asyncExec(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mFiltersTableViewer.getTable().isDisposed() || getLogStore() != store) {
+                            return;
+                        }
+                        for (int i = 0; i < counts.length; i++) {
+                            LogCatFilter f = filters.get(i);
+                            // selected meanwhile, its messages are read
+                            if (mLogCatFilters.indexOf(f) != mCurrentSelectedFilterIndex) {
+                                f.addUnreadCount(counts[i]);
+                            }
+                        }
+                        refreshFiltersTable();
+                    }
+                });
+            }
+        });
+    }
+
+    /** Compiled saved filters counting unread messages, kept while the filters are not edited. */
+    private final Map<LogCatFilter, LogCatCompiledFilter> mUnreadCountFilters =
+        new IdentityHashMap<LogCatFilter, LogCatCompiledFilter>();
+
+    private LogCatCompiledFilter getUnreadCountFilter(LogCatFilter f) {
+        LogCatCompiledFilter compiled = mUnreadCountFilters.get(f);
+        if (compiled == null) {
+            // drop the filters removed or replaced
+            mUnreadCountFilters.keySet().retainAll(mLogCatFilters);
+            compiled = LogCatCompiledFilter.compile(Collections.singletonList(f));
+            mUnreadCountFilters.put(f, compiled);
         }
+        return compiled;
     }
 
     private void refreshFiltersTable() {
@@ -1470,7 +1705,7 @@ public final class LogCatPanel implements ILogCatMessageEventListener, ILogCatSy
             }
 
             if (mShouldScrollToLatestLog) {
-                mViewer.refresh();
+                mContentProvider.refresh();
                 scrollToLatestLog();
             }
         }
@@ -0,0 +1,137 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A log file being parsed in the background by {@link LogCatMessageParser}. It tells how far the
+ * parsing went, and can be cancelled. A job is also cancelled when another file is opened in one
+ * of its panels.
+ */
+public final class LogCatParseJob {
+    private final File mFile;
+    private volatile long mFileSize;
+    private final int[] mPanelIDs;
+    private final long mStartTime = System.currentTimeMillis();
+
+    private volatile long mBytesRead;
+    private volatile int mMessageCount;
+    private volatile boolean mCancelled;
+    private volatile boolean mDone;
+    private volatile boolean mFollowing;
+    private volatile long mEndTime;
+    private volatile List<String> mCrashReports = Collections.emptyList();
+
+    LogCatParseJob(File file, int... panelIDs) {
+        mFile = file;
+        mFileSize = file.length();
+        mPanelIDs = panelIDs;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Number of bytes to parse, -1 if it is unknown. */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    /** Change the number of bytes to parse, when the file is compressed. */
+    void setFileSize(long size) {
+        mFileSize = size;
+    }
+
+    /** Names of the ANR traces and tombstones found next to the log, in a bugreport zip. */
+    public List<String> getCrashReports() {
+        return mCrashReports;
+    }
+
+    void setCrashReports(List<String> names) {
+        mCrashReports = names;
+    }
+
+    /** Whether the job shows its messages in the given panel. */
+    public boolean usesPanel(int panelID) {
+        for (int id : mPanelIDs) {
+            if (id == panelID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean usesPanelOf(LogCatParseJob job) {
+        for (int id : job.mPanelIDs) {
+            if (usesPanel(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Number of bytes of the file parsed so far. */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /** Number of messages delivered to the panels so far. */
+    public int getMessageCount() {
+        return mMessageCount;
+    }
+
+    void addProgress(long bytes, int messages) {
+        // only the thread running the job updates its progress
+        mBytesRead += bytes;
+        mMessageCount += messages;
+    }
+
+    /**
+     * Stop parsing. No message of the job reaches the panels anymore once this returns, what was
+     * delivered before stays.
+     */
+    public synchronized void cancel() {
+        // the parser holds the lock of the job while it delivers messages
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** Start counting again, for a file parsed again from its start. */
+    void restart(long size) {
+        mFileSize = size;
+        mBytesRead = 0;
+        mMessageCount = 0;
+        mFollowing = false;
+    }
+
+    /**
+     * Whether the file is parsed and watched, the lines appended to it are parsed as they come.
+     * The job then runs until it is cancelled.
+     */
+    public boolean isFollowing() {
+        return mFollowing;
+    }
+
+    void setFollowing(boolean following) {
+        mFollowing = following;
+    }
+
+    void setDone() {
+        mEndTime = System.currentTimeMillis();
+        mDone = true;
+    }
+
+    /** Whether the job ended, because the whole file was parsed or because it was cancelled. */
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /** Time spent on the job in ms, until now if it is still running. */
+    public long getElapsedTime() {
+        return (mDone ? mEndTime : System.currentTimeMillis()) - mStartTime;
+    }
+}
@@ -0,0 +1,98 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Message texts left in the log file they were parsed from. Messages only remember where their
+ * text is in the file, and the text is decoded from a memory mapping of the file when it is
+ * asked for. The last texts decoded are kept in a small LRU cache, since the table asks for the
+ * same visible rows again and again.
+ */
+public final class LogFileText {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Size of the mapped windows, a text may span two of them. */
+    private static final int WINDOW_SHIFT = 28;
+    private static final int WINDOW_SIZE = 1 << WINDOW_SHIFT;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    private static final int CACHE_SIZE = 4096;
+
+    private final MappedByteBuffer[] mWindows;
+
+    private final Map<Long, String> mCache = new LinkedHashMap<Long, String>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public LogFileText(File file) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = f.getChannel();
+            long size = channel.size();
+            mWindows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) >>> WINDOW_SHIFT)];
+            for (int i = 0; i < mWindows.length; i++) {
+                long start = (long) i << WINDOW_SHIFT;
+                mWindows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(WINDOW_SIZE, size - start));
+            }
+        } finally {
+            // the mappings stay valid once the file is closed
+            f.close();
+        }
+    }
+
+    /**
+     * Get the text stored at the given place of the file.
+     * @param offset offset of the first byte of the text in the file
+     * @param length length of the text in bytes
+     */
+    public String getText(long offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        Long key = Long.valueOf(offset);
+        synchronized (mCache) {
+            String text = mCache.get(key);
+            if (text != null) {
+                return text;
+            }
+        }
+        String text = decode(offset, length);
+        synchronized (mCache) {
+            mCache.put(key, text);
+        }
+        return text;
+    }
+
+    /**
+     * Copy the UTF-8 bytes of the text stored at the given place of the file, without decoding
+     * them or going through the cache.
+     */
+    public void getBytes(long offset, int length, byte[] dst) {
+        for (int i = 0; i < length; i++) {
+            long pos = offset + i;
+            dst[i] = mWindows[(int) (pos >>> WINDOW_SHIFT)].get((int) (pos & WINDOW_MASK));
+        }
+    }
+
+    private String decode(long offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            long pos = offset + i;
+            bytes[i] = mWindows[(int) (pos >>> WINDOW_SHIFT)].get((int) (pos & WINDOW_MASK));
+        }
+        return new String(bytes, UTF8);
+    }
+}
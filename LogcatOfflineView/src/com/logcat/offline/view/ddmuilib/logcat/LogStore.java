@@ -0,0 +1,968 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmuilib.logcat.LogCatMessage;
+
+/**
+ * Column oriented storage for the messages of a log file.
+ * <p/>
+ * Instead of one {@link LogCatMessage} and its six strings per line, every field is kept in a
+ * primitive array indexed by row: the level and the highlight flags as bytes, pid and tid as
+ * ints, the time as milliseconds since the epoch, the tag as an id into a dictionary of the tags
+ * seen so far, and the message text UTF-8 encoded in a paged byte arena. A row costs about 34
+ * bytes plus the bytes of its text, or nothing more when the parser left the text in the log
+ * file (see {@link LogFileText}).
+ * <p/>
+ * The rows of each level, tag and pid are also kept as {@link RowBitmap}s, about 6 more bytes a
+ * row, so that filters on them come down to a few bitmap operations instead of a look at every
+ * row.
+ * <p/>
+ * Rows are only ever appended, by a single thread at a time. Other threads may read any row from
+ * {@link #getFirstRow()} to {@link #size()}.
+ * <p/>
+ * A store for a live log can be bounded: it keeps its columns in a ring buffer and drops its
+ * oldest rows as new ones come. Rows keep the number they got when they were appended, the
+ * retained ones go from {@link #getFirstRow()} to {@link #size()}.
+ */
+public final class LogStore {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    private static final int FLAG_HIGHLIGHT = 1;
+    private static final int FLAG_SEARCH_HIGHLIGHT = 2;
+
+    /** Size of the pages of the text arena, a message may span several pages. */
+    private static final int PAGE_SHIFT = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Offsets of texts left in log files use the low bits, the index of the file the others. */
+    private static final int FILE_SHIFT = 40;
+    private static final long FILE_OFFSET_MASK = (1L << FILE_SHIFT) - 1;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /** Times that are kept in the string pool are encoded from here, far before any real time. */
+    private static final long STRING_TIME = Long.MIN_VALUE;
+
+    private byte[] mLevels = new byte[INITIAL_CAPACITY];
+    private byte[] mFlags = new byte[INITIAL_CAPACITY];
+    private int[] mPids = new int[INITIAL_CAPACITY];
+    private int[] mTids = new int[INITIAL_CAPACITY];
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private int[] mTagIds = new int[INITIAL_CAPACITY];
+    /**
+     * Offset of the text of each row in the arena, or when it was left in a log file
+     * -1 - (index of the file in {@link #mFileTexts} << FILE_SHIFT | offset in the file).
+     */
+    private long[] mTextOffsets = new long[INITIAL_CAPACITY];
+    /** Length of the text of each row in bytes. */
+    private int[] mTextLengths = new int[INITIAL_CAPACITY];
+    private LogFileText[] mFileTexts = new LogFileText[0];
+
+    private byte[][] mPages = new byte[16][];
+    private long mArenaSize;
+
+    private final StringPool mTags = new StringPool();
+    /** Pids, tids and times that are not plain numbers ("?", "", other time formats...). */
+    private final StringPool mStrings = new StringPool();
+
+    private final int mReferenceYear;
+    private final int mReferenceMonth;
+    private int mYear;
+    private int mLastMonth;
+
+    private volatile int mSize;
+
+    /** Number of rows kept at most, {@link Integer#MAX_VALUE} if the store is not bounded. */
+    private final int mMaxRows;
+    /** Row {@code r} is in the slot {@code r & mMask} of the columns, -1 if they never wrap. */
+    private final int mMask;
+    /** Oldest row still in the store, the rows before it were dropped. */
+    private volatile int mFirstRow;
+    /** Number of arena pages at the start that only held the texts of dropped rows. */
+    private int mFreedPages;
+
+    /** Rows of each level by ordinal, of each tag by id and of each pid by id, see {@link RowBitmap}. */
+    private final RowBitmap[] mLevelRows = new RowBitmap[LEVELS.length];
+    private RowBitmap[] mTagRows = new RowBitmap[64];
+    private final HashMap<Integer, RowBitmap> mPidRows = new HashMap<Integer, RowBitmap>();
+    /** The bitmaps hold no block of rows before this one. */
+    private int mIndexedFirstRow;
+    private TextIndex mTextIndex;
+
+    private final List<LogCatMessageWrapper> mRows = new Rows();
+
+    /** A store for live messages, their year is the current one. */
+    public LogStore() {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * @param referenceTime a time shortly after the last message, usually the modification time
+     * of the log file. The year of the time stamps is guessed from it.
+     */
+    public LogStore(long referenceTime) {
+        this(referenceTime, Integer.MAX_VALUE);
+    }
+
+    /**
+     * A store that keeps only the last rows appended to it.
+     * @param referenceTime see {@link #LogStore(long)}
+     * @param maxRows number of rows kept, the oldest ones are dropped past it
+     */
+    public LogStore(long referenceTime, int maxRows) {
+        if (maxRows <= 0) {
+            throw new IllegalArgumentException("maxRows: " + maxRows);
+        }
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(referenceTime);
+        mReferenceYear = c.get(Calendar.YEAR);
+        mReferenceMonth = c.get(Calendar.MONTH) + 1;
+        mMaxRows = maxRows;
+        // the slots are a power of two, enough for maxRows, so that a row finds its slot with a mask
+        mMask = maxRows == Integer.MAX_VALUE || maxRows > (1 << 30) ? -1
+                : Integer.highestOneBit(Math.max(maxRows - 1, 1)) * 2 - 1;
+    }
+
+    private LogStore(int referenceYear, int referenceMonth) {
+        mReferenceYear = referenceYear;
+        mReferenceMonth = referenceMonth;
+        mMaxRows = Integer.MAX_VALUE;
+        mMask = -1;
+    }
+
+    /** Number of rows appended so far, any row from {@link #getFirstRow()} to it can be read. */
+    public int size() {
+        return mSize;
+    }
+
+    /** The oldest row the store still holds, 0 unless it is bounded and dropped rows. */
+    public int getFirstRow() {
+        return mFirstRow;
+    }
+
+    /** Number of rows kept at most, {@link Integer#MAX_VALUE} if the store is not bounded. */
+    public int getMaxRows() {
+        return mMaxRows;
+    }
+
+    /** Append a batch of messages, dropping the oldest rows if the store is full. */
+    public synchronized void addAll(List<LogCatMessage> messages) {
+        int size = mSize;
+        int newSize = size + messages.size();
+        if (newSize - mFirstRow > mMaxRows) {
+            // the slots of the dropped rows are about to be reused, tell the readers first
+            mFirstRow = newSize - mMaxRows;
+        }
+        ensureCapacity(mMask == -1 ? newSize : Math.min(newSize, mMask + 1));
+        for (LogCatMessage m : messages) {
+            int slot = size & mMask;
+            mLevels[slot] = (byte) m.getLogLevel().ordinal();
+            mFlags[slot] = 0;
+            mPids[slot] = encodeNumber(m.getPid());
+            mTids[slot] = encodeNumber(m.getTid());
+            mTimes[slot] = encodeTime(m.getTime());
+            mTagIds[slot] = mTags.getId(m.getTag());
+            if (m.getTextSource() != null) {
+                long file = getFileTextIndex(m.getTextSource());
+                mTextOffsets[slot] = -1 - (file << FILE_SHIFT | m.getTextOffset());
+                mTextLengths[slot] = m.getTextLength();
+            } else {
+                long start = mArenaSize;
+                appendText(m.getMessage());
+                mTextOffsets[slot] = start;
+                mTextLengths[slot] = (int) (mArenaSize - start);
+            }
+            indexRow(size, slot);
+            size++;
+        }
+        if (mFirstRow > 0) {
+            freeArenaPages();
+            removeIndexedRows();
+        }
+        // publish the new rows only once all their columns are written
+        mSize = size;
+    }
+
+    /** Add a row to the bitmaps of its level, tag and pid. */
+    private void indexRow(int row, int slot) {
+        int level = mLevels[slot];
+        if (mLevelRows[level] == null) {
+            mLevelRows[level] = new RowBitmap();
+        }
+        mLevelRows[level].add(row);
+
+        int tagId = mTagIds[slot];
+        if (tagId >= mTagRows.length) {
+            mTagRows = Arrays.copyOf(mTagRows, Math.max(tagId + 1, mTagRows.length * 2));
+        }
+        if (mTagRows[tagId] == null) {
+            mTagRows[tagId] = new RowBitmap();
+        }
+        mTagRows[tagId].add(row);
+
+        Integer pidId = mPids[slot];
+        RowBitmap pidRows = mPidRows.get(pidId);
+        if (pidRows == null) {
+            pidRows = new RowBitmap();
+            mPidRows.put(pidId, pidRows);
+        }
+        pidRows.add(row);
+    }
+
+    /** Drop the blocks of the bitmaps that only hold dropped rows. */
+    private void removeIndexedRows() {
+        // the bitmaps only drop whole blocks of rows, look at them once per block
+        if (mFirstRow - mIndexedFirstRow < 1 << 16) {
+            return;
+        }
+        mIndexedFirstRow = mFirstRow;
+        for (RowBitmap b : mLevelRows) {
+            if (b != null) {
+                b.removeBefore(mFirstRow);
+            }
+        }
+        for (RowBitmap b : mTagRows) {
+            if (b != null) {
+                b.removeBefore(mFirstRow);
+            }
+        }
+        for (Iterator<RowBitmap> i = mPidRows.values().iterator(); i.hasNext(); ) {
+            RowBitmap b = i.next();
+            b.removeBefore(mFirstRow);
+            if (b.isEmpty()) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Rows of the given levels, from {@code from} to {@code to}. The result may hold a few rows
+     * outside of the range.
+     * @param levels whether each level, by ordinal, is wanted
+     */
+    public synchronized RowBitmap getLevelRows(boolean[] levels, int from, int to) {
+        List<RowBitmap> bitmaps = new ArrayList<RowBitmap>();
+        for (int i = 0; i < mLevelRows.length; i++) {
+            if (levels[i] && mLevelRows[i] != null) {
+                bitmaps.add(mLevelRows[i]);
+            }
+        }
+        return RowBitmap.or(bitmaps, from, to);
+    }
+
+    /** Rows with one of the given tags, from {@code from} to {@code to}, see {@link #getTagId(int)}. */
+    public synchronized RowBitmap getTagRows(int[] tagIds, int from, int to) {
+        List<RowBitmap> bitmaps = new ArrayList<RowBitmap>();
+        for (int id : tagIds) {
+            if (id < mTagRows.length && mTagRows[id] != null) {
+                bitmaps.add(mTagRows[id]);
+            }
+        }
+        return RowBitmap.or(bitmaps, from, to);
+    }
+
+    /** Rows with one of the given pids, from {@code from} to {@code to}, see {@link #getPidId(int)}. */
+    public synchronized RowBitmap getPidRows(int[] pidIds, int from, int to) {
+        List<RowBitmap> bitmaps = new ArrayList<RowBitmap>();
+        for (int id : pidIds) {
+            RowBitmap b = mPidRows.get(id);
+            if (b != null) {
+                bitmaps.add(b);
+            }
+        }
+        return RowBitmap.or(bitmaps, from, to);
+    }
+
+    /** Ids of the pids of the rows the store holds, and maybe of some dropped ones. */
+    public synchronized int[] getPidIds() {
+        int[] ids = new int[mPidRows.size()];
+        int n = 0;
+        for (Integer id : mPidRows.keySet()) {
+            ids[n++] = id;
+        }
+        return ids;
+    }
+
+    /** Free the arena pages before the text of the oldest row, only dropped rows used them. */
+    private void freeArenaPages() {
+        long firstText = mTextOffsets[mFirstRow & mMask];
+        if (firstText < 0) {
+            return;
+        }
+        int firstPage = (int) (firstText >>> PAGE_SHIFT);
+        while (mFreedPages < firstPage) {
+            mPages[mFreedPages++] = null;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mLevels.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mLevels.length + (mLevels.length >> 1));
+        if (mMask != -1) {
+            newCapacity = Math.min(newCapacity, mMask + 1);
+        }
+        mLevels = Arrays.copyOf(mLevels, newCapacity);
+        mFlags = Arrays.copyOf(mFlags, newCapacity);
+        mPids = Arrays.copyOf(mPids, newCapacity);
+        mTids = Arrays.copyOf(mTids, newCapacity);
+        mTimes = Arrays.copyOf(mTimes, newCapacity);
+        mTagIds = Arrays.copyOf(mTagIds, newCapacity);
+        mTextOffsets = Arrays.copyOf(mTextOffsets, newCapacity);
+        mTextLengths = Arrays.copyOf(mTextLengths, newCapacity);
+    }
+
+    public LogLevel getLogLevel(int row) {
+        return LEVELS[mLevels[row & mMask]];
+    }
+
+    public String getPid(int row) {
+        return decodeNumber(mPids[row & mMask]);
+    }
+
+    /** Id of the pid of a row, rows with equal pids have equal ids. */
+    public int getPidId(int row) {
+        return mPids[row & mMask];
+    }
+
+    /** The pid of the given id, see {@link #getPidId(int)}. */
+    public String getPidById(int pidId) {
+        return decodeNumber(pidId);
+    }
+
+    public String getTid(int row) {
+        return decodeNumber(mTids[row & mMask]);
+    }
+
+    public String getTag(int row) {
+        return mTags.getString(mTagIds[row & mMask]);
+    }
+
+    /** Id of the tag of a row, rows with equal tags have equal ids. */
+    public int getTagId(int row) {
+        return mTagIds[row & mMask];
+    }
+
+    /**
+     * Number of distinct tags, tag ids go from 0 to this count. Safe to call while rows are
+     * added, every tag id below the returned count has its tag.
+     */
+    public int getTagCount() {
+        return mTags.size();
+    }
+
+    public String getTagById(int tagId) {
+        return mTags.getString(tagId);
+    }
+
+    public String getTime(int row) {
+        return decodeTime(mTimes[row & mMask]);
+    }
+
+    /**
+     * Time of a row in milliseconds since the epoch, the local time of the log taken as UTC.
+     * @return {@link LogCatMessage#NO_TIMESTAMP} if the row has no time stamp.
+     */
+    public long getTimestamp(int row) {
+        long value = mTimes[row & mMask];
+        return isStringTime(value) ? LogCatMessage.NO_TIMESTAMP : value;
+    }
+
+    public String getMessage(int row) {
+        long start = mTextOffsets[row & mMask];
+        int len = mTextLengths[row & mMask];
+        if (start < 0) {
+            return getFileText(start).getText((-1 - start) & FILE_OFFSET_MASK, len);
+        }
+        if (len == 0) {
+            return "";
+        }
+        byte[] page = mPages[(int) (start >>> PAGE_SHIFT)];
+        int offset = (int) (start & PAGE_MASK);
+        if (offset + len <= PAGE_SIZE) {
+            // a row dropped while it is read may have lost its page
+            return page != null ? new String(page, offset, len, UTF8) : "";
+        }
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            page = mPages[(int) ((start + i) >>> PAGE_SHIFT)];
+            if (page == null) {
+                return "";
+            }
+            bytes[i] = page[(int) ((start + i) & PAGE_MASK)];
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /** Length of the text of a row, in UTF-8 bytes. */
+    int getMessageLength(int row) {
+        return mTextLengths[row & mMask];
+    }
+
+    /** Copy the UTF-8 bytes of the text of a row, {@link #getMessageLength(int)} of them. */
+    void getMessageBytes(int row, byte[] dst) {
+        long start = mTextOffsets[row & mMask];
+        int len = mTextLengths[row & mMask];
+        if (start < 0) {
+            getFileText(start).getBytes((-1 - start) & FILE_OFFSET_MASK, len, dst);
+            return;
+        }
+        for (int i = 0; i < len; ) {
+            byte[] page = mPages[(int) ((start + i) >>> PAGE_SHIFT)];
+            int offset = (int) ((start + i) & PAGE_MASK);
+            int n = Math.min(len - i, PAGE_SIZE - offset);
+            if (page == null) {
+                Arrays.fill(dst, i, len, (byte) 0);
+                return;
+            }
+            System.arraycopy(page, offset, dst, i, n);
+            i += n;
+        }
+    }
+
+    /**
+     * The trigram index of the texts of the rows, see {@link TextIndex}. The rows appended since
+     * the last call start being indexed in the background.
+     * @return null for a bounded store, or a store small enough to look through all its texts.
+     */
+    synchronized TextIndex indexText() {
+        if (mMask != -1 || mSize < TextIndex.MIN_ROWS) {
+            return null;
+        }
+        if (mTextIndex == null) {
+            mTextIndex = new TextIndex(this);
+        }
+        mTextIndex.update();
+        return mTextIndex;
+    }
+
+    /** Build a {@link LogCatMessage} holding the fields of a row. */
+    public LogCatMessage getLogCatMessage(int row) {
+        long start = mTextOffsets[row & mMask];
+        if (start < 0) {
+            // leave the text in the file until the message is asked for it
+            return new LogCatMessage(getLogLevel(row), getPid(row), getTid(row), getTag(row),
+                    getTime(row), getFileText(start), (-1 - start) & FILE_OFFSET_MASK,
+                    mTextLengths[row & mMask], getTimestamp(row));
+        }
+        return new LogCatMessage(getLogLevel(row), getPid(row), getTid(row), getTag(row), getTime(row),
+                getMessage(row), getTimestamp(row));
+    }
+
+    private int getFileTextIndex(LogFileText text) {
+        for (int i = mFileTexts.length - 1; i >= 0; i--) {
+            if (mFileTexts[i] == text) {
+                return i;
+            }
+        }
+        mFileTexts = Arrays.copyOf(mFileTexts, mFileTexts.length + 1);
+        mFileTexts[mFileTexts.length - 1] = text;
+        return mFileTexts.length - 1;
+    }
+
+    private LogFileText getFileText(long textOffset) {
+        return mFileTexts[(int) ((-1 - textOffset) >>> FILE_SHIFT)];
+    }
+
+    public boolean isHighlight(int row) {
+        return (mFlags[row & mMask] & FLAG_HIGHLIGHT) != 0;
+    }
+
+    public void setHighlight(int row, boolean highlight) {
+        setFlag(row, FLAG_HIGHLIGHT, highlight);
+    }
+
+    public boolean isSearchHighlight(int row) {
+        return (mFlags[row & mMask] & FLAG_SEARCH_HIGHLIGHT) != 0;
+    }
+
+    public void setSearchHighlight(int row, boolean highlight) {
+        setFlag(row, FLAG_SEARCH_HIGHLIGHT, highlight);
+    }
+
+    private void setFlag(int row, int flag, boolean set) {
+        if (set) {
+            mFlags[row & mMask] |= flag;
+        } else {
+            mFlags[row & mMask] &= ~flag;
+        }
+    }
+
+    /**
+     * The rows the store holds as a list of {@link LogCatMessageWrapper}, which are created when
+     * they are asked for and only point back to their row. Index 0 is {@link #getFirstRow()}.
+     */
+    public List<LogCatMessageWrapper> asList() {
+        return mRows;
+    }
+
+    /**
+     * A range of rows as a list of {@link LogCatMessageWrapper}. Unlike {@link #asList()}, its
+     * indexes don't move when the oldest rows are dropped.
+     * @param fromRow first row of the range
+     * @param toRow row after the last one of the range
+     */
+    public List<LogCatMessageWrapper> getRows(int fromRow, int toRow) {
+        return new RowRange(fromRow, toRow);
+    }
+
+    private class Rows extends AbstractList<LogCatMessageWrapper> implements RandomAccess {
+        @Override
+        public LogCatMessageWrapper get(int index) {
+            int first = mFirstRow;
+            if (index < 0 || first + index >= mSize) {
+                throw new IndexOutOfBoundsException("Row " + index + ", size " + (mSize - first));
+            }
+            return new LogCatMessageWrapper(LogStore.this, first + index);
+        }
+
+        @Override
+        public int size() {
+            return mSize - mFirstRow;
+        }
+    }
+
+    private class RowRange extends AbstractList<LogCatMessageWrapper> implements RandomAccess {
+        private final int mFrom;
+        private final int mTo;
+
+        RowRange(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        public LogCatMessageWrapper get(int index) {
+            if (index < 0 || mFrom + index >= mTo) {
+                throw new IndexOutOfBoundsException("Row " + index + ", size " + (mTo - mFrom));
+            }
+            return new LogCatMessageWrapper(LogStore.this, mFrom + index);
+        }
+
+        @Override
+        public int size() {
+            return mTo - mFrom;
+        }
+    }
+
+    /**
+     * Encode a pid or tid: plain decimal numbers are kept as they are, anything else is stored in
+     * the string pool and encoded as a negative id.
+     */
+    private int encodeNumber(String s) {
+        int len = s.length();
+        if (len > 0 && len <= 9 && (s.charAt(0) != '0' || len == 1)) {
+            int value = 0;
+            int i = 0;
+            while (i < len && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                value = value * 10 + (s.charAt(i) - '0');
+                i++;
+            }
+            if (i == len) {
+                return value;
+            }
+        }
+        return -1 - mStrings.getId(s);
+    }
+
+    private String decodeNumber(int value) {
+        return value >= 0 ? Integer.toString(value) : mStrings.getString(-1 - value);
+    }
+
+    /**
+     * Encode a {@code "MM-dd HH:mm:ss.SSS"} time as milliseconds since the epoch, taking the
+     * log's local time as if it were UTC. Logcat does not print the year: the first time stamp
+     * gets the year of the reference time given to the constructor, or the year before if its
+     * month comes later in the year, and the year moves on whenever the month goes back by half a
+     * year or more (December to January). Other times go to the string pool.
+     */
+    private long encodeTime(String time) {
+        if (time.length() != 18 || time.charAt(2) != '-' || time.charAt(5) != ' '
+                || time.charAt(8) != ':' || time.charAt(11) != ':' || time.charAt(14) != '.') {
+            return encodeString(time);
+        }
+        int month = getNumber(time, 0, 2);
+        int day = getNumber(time, 3, 5);
+        int hour = getNumber(time, 6, 8);
+        int minute = getNumber(time, 9, 11);
+        int second = getNumber(time, 12, 14);
+        int millis = getNumber(time, 15, 18);
+        if (month < 1 || month > 12 || day < 1 || hour < 0 || hour > 23 || minute < 0
+                || minute > 59 || second < 0 || second > 59 || millis < 0) {
+            return encodeString(time);
+        }
+
+        int year;
+        if (mLastMonth == 0) {
+            year = month > mReferenceMonth ? mReferenceYear - 1 : mReferenceYear;
+        } else {
+            year = month <= mLastMonth - 6 ? mYear + 1 : mYear;
+        }
+        if (day > getDaysInMonth(year, month)) {
+            // a 02-29 in a year that has none, it can't be turned back into the same string
+            return encodeString(time);
+        }
+        mYear = year;
+        mLastMonth = month;
+        return (((getEpochDay(year, month, day) * 24 + hour) * 60 + minute) * 60 + second) * 1000
+                + millis;
+    }
+
+    private long encodeString(String s) {
+        return STRING_TIME + mStrings.getId(s);
+    }
+
+    private static boolean isStringTime(long value) {
+        return value < STRING_TIME + Integer.MAX_VALUE;
+    }
+
+    private String decodeTime(long value) {
+        if (isStringTime(value)) {
+            return mStrings.getString((int) (value - STRING_TIME));
+        }
+        return formatTime(value);
+    }
+
+    /** Format milliseconds since the epoch the way logcat does it, {@code "MM-dd HH:mm:ss.SSS"}. */
+    public static String formatTime(long timestamp) {
+        long days = floorDiv(timestamp, DAY_MILLIS);
+        int millisOfDay = (int) (timestamp - days * DAY_MILLIS);
+
+        // civil date of an epoch day, from http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+
+        char[] c = new char[18];
+        putNumber(c, 0, 2, month);
+        c[2] = '-';
+        putNumber(c, 3, 5, day);
+        c[5] = ' ';
+        putNumber(c, 6, 8, millisOfDay / 3600000);
+        c[8] = ':';
+        putNumber(c, 9, 11, millisOfDay / 60000 % 60);
+        c[11] = ':';
+        putNumber(c, 12, 14, millisOfDay / 1000 % 60);
+        c[14] = '.';
+        putNumber(c, 15, 18, millisOfDay % 1000);
+        return new String(c);
+    }
+
+    /** Days from 1970-01-01 to a date of the proleptic Gregorian calendar. */
+    private static long getEpochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static int getDaysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    /** Value of the digits from start to end, -1 if there is anything else. */
+    private static int getNumber(String s, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void putNumber(char[] c, int start, int end, int value) {
+        for (int i = end - 1; i >= start; i--) {
+            c[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private void appendText(String text) {
+        if (text == null) {
+            return;
+        }
+        int len = text.length();
+        int i = 0;
+        while (i < len && text.charAt(i) < 0x80) {
+            i++;
+        }
+        if (i == len) {
+            // plain ASCII, the chars are the bytes
+            i = 0;
+            while (i < len) {
+                byte[] page = getArenaPage();
+                int offset = (int) (mArenaSize & PAGE_MASK);
+                int n = Math.min(len - i, PAGE_SIZE - offset);
+                for (int j = 0; j < n; j++) {
+                    page[offset + j] = (byte) text.charAt(i + j);
+                }
+                i += n;
+                mArenaSize += n;
+            }
+        } else {
+            byte[] bytes = text.getBytes(UTF8);
+            i = 0;
+            while (i < bytes.length) {
+                byte[] page = getArenaPage();
+                int offset = (int) (mArenaSize & PAGE_MASK);
+                int n = Math.min(bytes.length - i, PAGE_SIZE - offset);
+                System.arraycopy(bytes, i, page, offset, n);
+                i += n;
+                mArenaSize += n;
+            }
+        }
+    }
+
+    /** Page of the arena the next byte goes to. */
+    private byte[] getArenaPage() {
+        int page = (int) (mArenaSize >>> PAGE_SHIFT);
+        if (page == mPages.length) {
+            mPages = Arrays.copyOf(mPages, page * 2);
+        }
+        if (mPages[page] == null) {
+            mPages[page] = new byte[PAGE_SIZE];
+        }
+        return mPages[page];
+    }
+
+    /** Size of the fixed part at the beginning of what {@link #write(FileChannel)} writes. */
+    private static final int HEADER_SIZE = 40;
+
+    /**
+     * Write the rows to a file, at the current position of the channel. The columns follow each
+     * other as plain big-endian arrays, after a small header and the string pools, so that
+     * {@link #read(FileChannel, File)} maps them back in one go. Highlight flags are not written.
+     * @throws IOException if the texts of the rows come from more than one log file, or if rows
+     * were dropped.
+     */
+    synchronized void write(FileChannel channel) throws IOException {
+        if (mFileTexts.length > 1) {
+            throw new IOException("Texts from several log files");
+        }
+        if (mFirstRow > 0) {
+            throw new IOException("Rows dropped from a bounded store");
+        }
+        int size = mSize;
+
+        ByteArrayOutputStream pools = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(pools);
+        mTags.write(out);
+        mStrings.write(out);
+        out.close();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(size).putInt(mReferenceYear).putInt(mReferenceMonth).putInt(mYear)
+                .putInt(mLastMonth).putInt(mFileTexts.length).putInt(pools.size()).putInt(0)
+                .putLong(mArenaSize);
+        header.flip();
+        writeFully(channel, header);
+        writeFully(channel, ByteBuffer.wrap(pools.toByteArray()));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        writeFully(channel, ByteBuffer.wrap(mLevels, 0, size));
+        writeInts(channel, buffer, mPids, size);
+        writeInts(channel, buffer, mTids, size);
+        writeLongs(channel, buffer, mTimes, size);
+        writeInts(channel, buffer, mTagIds, size);
+        writeLongs(channel, buffer, mTextOffsets, size);
+        writeInts(channel, buffer, mTextLengths, size);
+        for (long pos = 0; pos < mArenaSize; pos += PAGE_SIZE) {
+            int len = (int) Math.min(PAGE_SIZE, mArenaSize - pos);
+            writeFully(channel, ByteBuffer.wrap(mPages[(int) (pos >>> PAGE_SHIFT)], 0, len));
+        }
+    }
+
+    /**
+     * Read rows written by {@link #write(FileChannel)}, from the current position of the channel.
+     * @param source the log file the store was built from, to read the texts left in it.
+     */
+    static LogStore read(FileChannel channel, File source) throws IOException {
+        long pos = channel.position();
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, pos, HEADER_SIZE);
+        int size = header.getInt();
+        LogStore store = new LogStore(header.getInt(), header.getInt());
+        store.mYear = header.getInt();
+        store.mLastMonth = header.getInt();
+        int fileTexts = header.getInt();
+        int poolsSize = header.getInt();
+        header.getInt();
+        long arenaSize = header.getLong();
+        pos += HEADER_SIZE;
+
+        ByteBuffer pools = channel.map(FileChannel.MapMode.READ_ONLY, pos, poolsSize);
+        store.mTags.read(pools);
+        store.mStrings.read(pools);
+        pos += poolsSize;
+
+        store.ensureCapacity(size);
+        channel.map(FileChannel.MapMode.READ_ONLY, pos, size).get(store.mLevels, 0, size);
+        pos += size;
+        pos = readInts(channel, pos, store.mPids, size);
+        pos = readInts(channel, pos, store.mTids, size);
+        pos = readLongs(channel, pos, store.mTimes, size);
+        pos = readInts(channel, pos, store.mTagIds, size);
+        pos = readLongs(channel, pos, store.mTextOffsets, size);
+        pos = readInts(channel, pos, store.mTextLengths, size);
+        while (store.mArenaSize < arenaSize) {
+            int len = (int) Math.min(PAGE_SIZE, arenaSize - store.mArenaSize);
+            channel.map(FileChannel.MapMode.READ_ONLY, pos, len).get(store.getArenaPage(), 0, len);
+            store.mArenaSize += len;
+            pos += len;
+        }
+        channel.position(pos);
+
+        if (fileTexts == 1) {
+            store.mFileTexts = new LogFileText[] { new LogFileText(source) };
+        }
+        for (int row = 0; row < size; row++) {
+            store.indexRow(row, row);
+        }
+        store.mSize = size;
+        return store;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values, int count)
+            throws IOException {
+        for (int i = 0; i < count; ) {
+            int n = Math.min(count - i, buffer.capacity() / 4);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, i, n);
+            buffer.limit(n * 4);
+            writeFully(channel, buffer);
+            i += n;
+        }
+    }
+
+    private static void writeLongs(FileChannel channel, ByteBuffer buffer, long[] values, int count)
+            throws IOException {
+        for (int i = 0; i < count; ) {
+            int n = Math.min(count - i, buffer.capacity() / 8);
+            buffer.clear();
+            buffer.asLongBuffer().put(values, i, n);
+            buffer.limit(n * 8);
+            writeFully(channel, buffer);
+            i += n;
+        }
+    }
+
+    private static long readInts(FileChannel channel, long pos, int[] values, int count)
+            throws IOException {
+        channel.map(FileChannel.MapMode.READ_ONLY, pos, count * 4L).asIntBuffer().get(values, 0, count);
+        return pos + count * 4L;
+    }
+
+    private static long readLongs(FileChannel channel, long pos, long[] values, int count)
+            throws IOException {
+        channel.map(FileChannel.MapMode.READ_ONLY, pos, count * 8L).asLongBuffer().get(values, 0, count);
+        return pos + count * 8L;
+    }
+
+    /**
+     * Strings stored once, and referred to by an id. Ids are only added under the lock of the
+     * store, the strings and their count can be read from any thread without it.
+     */
+    private static final class StringPool {
+        private final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+        private volatile String[] mStrings = new String[64];
+        private volatile int mSize;
+
+        public int getId(String s) {
+            Integer id = mIds.get(s);
+            if (id == null) {
+                id = mSize;
+                String[] strings = mStrings;
+                if (id == strings.length) {
+                    strings = Arrays.copyOf(strings, id * 2);
+                }
+                strings[id] = s;
+                mStrings = strings;
+                mIds.put(s, id);
+                mSize = id + 1;
+            }
+            return id;
+        }
+
+        public String getString(int id) {
+            return mStrings[id];
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            int size = size();
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                if (mStrings[i] == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] bytes = mStrings[i].getBytes(UTF8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+
+        public void read(ByteBuffer in) {
+            int size = in.getInt();
+            for (int i = 0; i < size; i++) {
+                int len = in.getInt();
+                if (len < 0) {
+                    getId(null);
+                } else {
+                    byte[] bytes = new byte[len];
+                    in.get(bytes);
+                    getId(new String(bytes, UTF8));
+                }
+            }
+        }
+    }
+}
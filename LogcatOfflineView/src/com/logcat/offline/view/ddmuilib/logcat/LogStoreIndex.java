@@ -0,0 +1,128 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Index file written next to a parsed log file, so that opening the same file again does not
+ * parse it again. It holds the {@link LogStore} built from the file: its columns, tag dictionary,
+ * text offsets in the file and time stamps, in a binary layout that is mapped back into memory.
+ * <p/>
+ * The index records the size and modification time of the log file, and is ignored as soon as
+ * they don't match anymore.
+ */
+final class LogStoreIndex {
+    /** Log files smaller than this are parsed quickly enough, no index is written for them. */
+    static final long MIN_FILE_SIZE = 32 * 1024 * 1024;
+
+    private static final String SUFFIX = ".lcindex";
+    /** Suffix of an index being written, renamed once complete. */
+    private static final String TMP_SUFFIX = SUFFIX + ".tmp";
+    private static final int MAGIC = 0x4c434958; // LCIX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private LogStoreIndex() {
+    }
+
+    static File getIndexFile(File source) {
+        return new File(source.getPath() + SUFFIX);
+    }
+
+    /** Whether a file is an index written next to a log, or one being written, not a log. */
+    static boolean isIndexFile(File file) {
+        String name = file.getName();
+        return name.endsWith(SUFFIX) || name.endsWith(TMP_SUFFIX);
+    }
+
+    /**
+     * Load the store of a log file from its index.
+     * @return null if there is no index, or if it does not match the file as it is now.
+     */
+    static LogStore read(File source) {
+        File index = getIndexFile(source);
+        if (!index.isFile()) {
+            return null;
+        }
+        try {
+            RandomAccessFile f = new RandomAccessFile(index, "r");
+            try {
+                FileChannel channel = f.getChannel();
+                if (channel.size() < HEADER_SIZE) {
+                    return null;
+                }
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt() != MAGIC || header.getInt() != VERSION
+                        || header.getLong() != source.length()
+                        || header.getLong() != source.lastModified()) {
+                    return null;
+                }
+                channel.position(HEADER_SIZE);
+                return LogStore.read(channel, source);
+            } finally {
+                f.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // a truncated or damaged index, the file will simply be parsed again
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Write the index of a log file once it has been parsed. The index is written to a temporary
+     * file first, and only replaces a previous one when it is complete.
+     */
+    static void write(LogStore store, File source) throws IOException {
+        File index = getIndexFile(source);
+        File tmp = new File(source.getPath() + TMP_SUFFIX);
+        RandomAccessFile f = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel channel = f.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(source.length())
+                    .putLong(source.lastModified());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            store.write(channel);
+        } catch (IOException e) {
+            f.close();
+            tmp.delete();
+            throw e;
+        }
+        f.close();
+        index.delete();
+        if (!tmp.renameTo(index)) {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp + " to " + index);
+        }
+    }
+
+    /** {@link #write(LogStore, File)} in a new thread, errors are only logged. */
+    static void writeInBackground(final LogStore store, final File source) {
+        if (!source.getAbsoluteFile().getParentFile().canWrite()) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(store, source);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.setName("Writing log file index..");
+        t.setDaemon(true);
+        t.start();
+    }
+}
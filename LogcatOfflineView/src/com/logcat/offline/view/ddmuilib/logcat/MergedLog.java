@@ -0,0 +1,231 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.android.ddmuilib.logcat.LogCatMessage;
+
+/**
+ * The rows of several {@link LogStore}s merged by time, for {@link LogCatMergedPanel}. Nothing of
+ * the rows is copied: an entry of the merge is only the store a row comes from and the row, 8
+ * bytes whatever the message.
+ * <p/>
+ * The stores are merged as they grow, each {@link #update(boolean[])} goes once over the rows
+ * appended since the last one. The merge does not go past the last row of a store still being
+ * parsed, its next rows may be older than the rows of the others. A row without a time stays
+ * right after the row before it in its store.
+ * <p/>
+ * The merge is done in the UI thread, where the table reads it, in slices: an update merges
+ * at most {@link #UPDATE_ROWS} rows, and {@link #isBehind()} tells whether more are waiting, as
+ * when a store was changed and the merge starts again.
+ */
+final class MergedLog {
+    /** Rows merged at most by an update. */
+    static final int UPDATE_ROWS = 64 * 1024;
+
+    private final String[] mBufferNames;
+    private final LogStore[] mStores;
+    /** Next row of each store to merge. */
+    private final int[] mNextRows;
+    /** First row of each store at the last update, a bounded store drops its oldest rows. */
+    private final int[] mFirstRows;
+    /** Time of the last merged row of each store that had one. */
+    private final long[] mLastTimes;
+
+    /** Merged rows up to mTail, each one the index of its store << 32 | its row. */
+    private long[] mEntries = new long[1024];
+    private int mTail;
+    /** Whether the last update left rows to merge. */
+    private boolean mBehind;
+
+    private final List<LogCatMessageWrapper> mRows = new Rows();
+
+    /** @param bufferNames names of the buffers the stores hold, the merge has one store each */
+    MergedLog(String[] bufferNames) {
+        mBufferNames = bufferNames;
+        mStores = new LogStore[bufferNames.length];
+        mNextRows = new int[bufferNames.length];
+        mFirstRows = new int[bufferNames.length];
+        mLastTimes = new long[bufferNames.length];
+        reset();
+    }
+
+    /** Set the store of a buffer, null if it has none. The merge starts again when it changes. */
+    void setStore(int buffer, LogStore store) {
+        if (mStores[buffer] != store) {
+            mStores[buffer] = store;
+            reset();
+        }
+    }
+
+    private void reset() {
+        mTail = 0;
+        Arrays.fill(mNextRows, 0);
+        Arrays.fill(mFirstRows, 0);
+        Arrays.fill(mLastTimes, Long.MIN_VALUE);
+    }
+
+    /**
+     * Merge the rows appended to the stores since the last update, {@link #UPDATE_ROWS} at most.
+     * @param loading for each buffer, whether its store is still being parsed
+     * @return whether the merged rows changed.
+     */
+    boolean update(boolean[] loading) {
+        boolean changed = dropRows();
+        mBehind = false;
+        int count = mStores.length;
+        int[] sizes = new int[count];
+        for (int b = 0; b < count; b++) {
+            if (mStores[b] != null) {
+                sizes[b] = mStores[b].size();
+                mNextRows[b] = Math.max(mNextRows[b], mStores[b].getFirstRow());
+            }
+        }
+        for (int merged = 0; ; merged++) {
+            if (merged == UPDATE_ROWS) {
+                mBehind = true;
+                return changed;
+            }
+            int next = -1;
+            long nextTime = 0;
+            for (int b = 0; b < count; b++) {
+                if (mNextRows[b] < sizes[b]) {
+                    // on equal times, the first buffer first
+                    long time = getTime(b, mNextRows[b]);
+                    if (next == -1 || time < nextTime) {
+                        next = b;
+                        nextTime = time;
+                    }
+                } else if (loading[b]) {
+                    // wait for the next rows of the store
+                    return changed;
+                }
+            }
+            if (next == -1) {
+                return changed;
+            }
+            add((long) next << 32 | mNextRows[next]);
+            mLastTimes[next] = nextTime;
+            mNextRows[next]++;
+            changed = true;
+        }
+    }
+
+    /** Whether rows were left to merge by the last update, the next one should come soon. */
+    boolean isBehind() {
+        return mBehind;
+    }
+
+    /** Time a row is merged by, the time of the row before it in its store if it has none. */
+    private long getTime(int buffer, int row) {
+        long time = mStores[buffer].getTimestamp(row);
+        return time == LogCatMessage.NO_TIMESTAMP ? mLastTimes[buffer] : time;
+    }
+
+    /** Remove the rows bounded stores dropped since the last update. */
+    private boolean dropRows() {
+        boolean dropped = false;
+        for (int b = 0; b < mStores.length; b++) {
+            if (mStores[b] != null && mStores[b].getFirstRow() != mFirstRows[b]) {
+                mFirstRows[b] = mStores[b].getFirstRow();
+                dropped = true;
+            }
+        }
+        if (!dropped) {
+            return false;
+        }
+        int tail = 0;
+        for (int i = 0; i < mTail; i++) {
+            long entry = mEntries[i];
+            if ((int) entry >= mFirstRows[(int) (entry >>> 32)]) {
+                mEntries[tail++] = entry;
+            }
+        }
+        mTail = tail;
+        return true;
+    }
+
+    private void add(long entry) {
+        if (mTail == mEntries.length) {
+            mEntries = Arrays.copyOf(mEntries, mEntries.length * 2);
+        }
+        mEntries[mTail++] = entry;
+    }
+
+    /** Number of merged rows. */
+    int size() {
+        return mTail;
+    }
+
+    /**
+     * Find the first merged row at or after a time.
+     * @param timestamp time as from {@link LogStore#getTimestamp(int)}
+     * @return the index of the row, {@link #size()} if all rows are older.
+     */
+    int indexOfTime(long timestamp) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTimeAt(mid) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Time of a merged row, or of the closest row before it that has one. */
+    private long getTimeAt(int index) {
+        for (int i = index; i >= 0; i--) {
+            long entry = mEntries[i];
+            long time = mStores[(int) (entry >>> 32)].getTimestamp((int) entry);
+            if (time != LogCatMessage.NO_TIMESTAMP) {
+                return time;
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * The merged rows as a list of {@link MergedMessageWrapper}, which are created when they are
+     * asked for.
+     */
+    List<LogCatMessageWrapper> asList() {
+        return mRows;
+    }
+
+    private class Rows extends AbstractList<LogCatMessageWrapper> implements RandomAccess {
+        @Override
+        public LogCatMessageWrapper get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Row " + index + ", size " + size());
+            }
+            long entry = mEntries[index];
+            int buffer = (int) (entry >>> 32);
+            return new MergedMessageWrapper(mStores[buffer], (int) entry, mBufferNames[buffer]);
+        }
+
+        @Override
+        public int size() {
+            return MergedLog.this.size();
+        }
+    }
+
+    /** A row of the merge, it knows the buffer it comes from. */
+    static final class MergedMessageWrapper extends LogCatMessageWrapper {
+        private final String mBufferName;
+
+        MergedMessageWrapper(LogStore store, int row, String bufferName) {
+            super(store, row);
+            mBufferName = bufferName;
+        }
+
+        public String getBufferName() {
+            return mBufferName;
+        }
+    }
+}
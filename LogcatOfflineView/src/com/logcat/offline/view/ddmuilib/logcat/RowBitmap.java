@@ -0,0 +1,314 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of rows of a {@link LogStore}, compressed the way roaring bitmaps are: the rows are split
+ * in blocks of 65536 by their high 16 bits, and each block keeps the low 16 bits of its rows
+ * either as a sorted array, 2 bytes a row, or once it has more than 4096 rows as a bitmap of 8 KB.
+ * <p/>
+ * The store keeps one for each level, tag and pid, appending rows as they come. The operations
+ * build new bitmaps and leave their operands as they are.
+ */
+public final class RowBitmap {
+    private static final int BLOCK_SHIFT = 16;
+    private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+    /** Rows a block keeps as an array at most, past it a bitmap is smaller. */
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = (1 << BLOCK_SHIFT) / 64;
+
+    /** High bits of the rows of each block, increasing. */
+    private int[] mKeys = new int[4];
+    /** Rows of each block: a char[] of low bits, or a long[] of {@link #WORDS} words. */
+    private Object[] mBlocks = new Object[4];
+    /** Number of rows of each block. */
+    private int[] mCounts = new int[4];
+    private int mBlockCount;
+
+    /** Add a row, greater than all the rows of the bitmap. */
+    public void add(int row) {
+        int key = row >>> BLOCK_SHIFT;
+        int last = mBlockCount - 1;
+        if (last < 0 || mKeys[last] != key) {
+            last = mBlockCount;
+            addBlock(key, new char[4], 0);
+        }
+        int count = mCounts[last];
+        Object block = mBlocks[last];
+        if (block instanceof char[]) {
+            char[] array = (char[]) block;
+            if (count == ARRAY_MAX) {
+                mBlocks[last] = toWords(array, count);
+            } else {
+                if (count == array.length) {
+                    array = Arrays.copyOf(array, Math.min(count * 2, ARRAY_MAX));
+                    mBlocks[last] = array;
+                }
+                array[count] = (char) row;
+                mCounts[last] = count + 1;
+                return;
+            }
+        }
+        long[] words = (long[]) mBlocks[last];
+        words[(row & BLOCK_MASK) >>> 6] |= 1L << row;
+        mCounts[last] = count + 1;
+    }
+
+    private void addBlock(int key, Object block, int count) {
+        if (mBlockCount == mKeys.length) {
+            int capacity = mBlockCount * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mBlocks = Arrays.copyOf(mBlocks, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+        }
+        mKeys[mBlockCount] = key;
+        mBlocks[mBlockCount] = block;
+        mCounts[mBlockCount] = count;
+        mBlockCount++;
+    }
+
+    /** Add a block built by an operation, as an array if it is small enough. */
+    private void addWords(int key, long[] words) {
+        int count = 0;
+        for (long w : words) {
+            count += Long.bitCount(w);
+        }
+        if (count == 0) {
+            return;
+        }
+        if (count > ARRAY_MAX) {
+            addBlock(key, words, count);
+            return;
+        }
+        char[] array = new char[count];
+        int n = 0;
+        for (int i = 0; i < WORDS; i++) {
+            long w = words[i];
+            while (w != 0) {
+                array[n++] = (char) (i << 6 | Long.numberOfTrailingZeros(w));
+                w &= w - 1;
+            }
+        }
+        addBlock(key, array, count);
+    }
+
+    private static long[] toWords(char[] array, int count) {
+        long[] words = new long[WORDS];
+        for (int i = 0; i < count; i++) {
+            words[array[i] >>> 6] |= 1L << array[i];
+        }
+        return words;
+    }
+
+    /** The rows of a block as words, the block itself when it is a bitmap. */
+    private long[] getWords(int block) {
+        Object b = mBlocks[block];
+        return b instanceof long[] ? (long[]) b : toWords((char[]) b, mCounts[block]);
+    }
+
+    /** The rows of a block as new words. */
+    private long[] copyWords(int block) {
+        Object b = mBlocks[block];
+        return b instanceof long[] ? ((long[]) b).clone() : toWords((char[]) b, mCounts[block]);
+    }
+
+    /** Index of the block with the given key, or -1. */
+    private int findBlock(int key) {
+        int low = 0;
+        int high = mBlockCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mKeys[mid] < key) {
+                low = mid + 1;
+            } else if (mKeys[mid] > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Number of rows in the bitmap. */
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < mBlockCount; i++) {
+            count += mCounts[i];
+        }
+        return count;
+    }
+
+    /** Drop the blocks that only hold rows before the given one, once a bounded store dropped them. */
+    public void removeBefore(int row) {
+        int key = row >>> BLOCK_SHIFT;
+        int n = 0;
+        while (n < mBlockCount && mKeys[n] < key) {
+            n++;
+        }
+        if (n > 0) {
+            mBlockCount -= n;
+            System.arraycopy(mKeys, n, mKeys, 0, mBlockCount);
+            System.arraycopy(mBlocks, n, mBlocks, 0, mBlockCount);
+            System.arraycopy(mCounts, n, mCounts, 0, mBlockCount);
+            Arrays.fill(mBlocks, mBlockCount, mBlockCount + n, null);
+        }
+    }
+
+    /** Whether the bitmap has no row. */
+    public boolean isEmpty() {
+        return mBlockCount == 0;
+    }
+
+    /** The rows from {@code from} to {@code to}, excluded. */
+    public static RowBitmap range(int from, int to) {
+        RowBitmap r = new RowBitmap();
+        for (int key = from >>> BLOCK_SHIFT; from < to; key++) {
+            int end = (int) Math.min(to, (long) (key + 1) << BLOCK_SHIFT);
+            if (end - from > ARRAY_MAX) {
+                long[] words = new long[WORDS];
+                for (int row = from; row < end; row++) {
+                    words[(row & BLOCK_MASK) >>> 6] |= 1L << row;
+                }
+                r.addBlock(key, words, end - from);
+            } else {
+                char[] array = new char[end - from];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = (char) (from + i);
+                }
+                r.addBlock(key, array, array.length);
+            }
+            from = end;
+        }
+        return r;
+    }
+
+    /**
+     * The union of bitmaps, only for the blocks holding rows from {@code from} to {@code to}: the
+     * result may have a few rows outside of the range, no block past it.
+     */
+    public static RowBitmap or(List<RowBitmap> bitmaps, int from, int to) {
+        RowBitmap r = new RowBitmap();
+        if (from >= to) {
+            return r;
+        }
+        int firstKey = from >>> BLOCK_SHIFT;
+        int lastKey = (to - 1) >>> BLOCK_SHIFT;
+        for (int key = firstKey; key <= lastKey; key++) {
+            long[] words = null;
+            for (RowBitmap b : bitmaps) {
+                int block = b.findBlock(key);
+                if (block < 0) {
+                    continue;
+                }
+                if (words == null) {
+                    words = new long[WORDS];
+                }
+                Object o = b.mBlocks[block];
+                if (o instanceof long[]) {
+                    long[] w = (long[]) o;
+                    for (int i = 0; i < WORDS; i++) {
+                        words[i] |= w[i];
+                    }
+                } else {
+                    char[] array = (char[]) o;
+                    for (int i = b.mCounts[block] - 1; i >= 0; i--) {
+                        words[array[i] >>> 6] |= 1L << array[i];
+                    }
+                }
+            }
+            if (words != null) {
+                r.addWords(key, words);
+            }
+        }
+        return r;
+    }
+
+    /** The rows in both this bitmap and another one. */
+    public RowBitmap and(RowBitmap other) {
+        RowBitmap r = new RowBitmap();
+        for (int i = 0, j = 0; i < mBlockCount && j < other.mBlockCount; ) {
+            if (mKeys[i] < other.mKeys[j]) {
+                i++;
+            } else if (mKeys[i] > other.mKeys[j]) {
+                j++;
+            } else {
+                long[] words = copyWords(i);
+                long[] w = other.getWords(j);
+                for (int k = 0; k < WORDS; k++) {
+                    words[k] &= w[k];
+                }
+                r.addWords(mKeys[i], words);
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /** The rows in this bitmap and not in another one. */
+    public RowBitmap andNot(RowBitmap other) {
+        RowBitmap r = new RowBitmap();
+        for (int i = 0, j = 0; i < mBlockCount; i++) {
+            while (j < other.mBlockCount && other.mKeys[j] < mKeys[i]) {
+                j++;
+            }
+            long[] words = copyWords(i);
+            if (j < other.mBlockCount && other.mKeys[j] == mKeys[i]) {
+                long[] w = other.getWords(j);
+                for (int k = 0; k < WORDS; k++) {
+                    words[k] &= ~w[k];
+                }
+            }
+            r.addWords(mKeys[i], words);
+        }
+        return r;
+    }
+
+    /** The rows from {@code from} to {@code to}, excluded, in increasing order. */
+    public int[] toArray(int from, int to) {
+        int count = 0;
+        for (int i = 0; i < mBlockCount; i++) {
+            if (inRange(i, from, to)) {
+                count += mCounts[i];
+            }
+        }
+        int[] rows = new int[count];
+        int n = 0;
+        for (int i = 0; i < mBlockCount; i++) {
+            if (!inRange(i, from, to)) {
+                continue;
+            }
+            int base = mKeys[i] << BLOCK_SHIFT;
+            Object o = mBlocks[i];
+            if (o instanceof char[]) {
+                char[] array = (char[]) o;
+                for (int k = 0; k < mCounts[i]; k++) {
+                    int row = base | array[k];
+                    if (row >= from && row < to) {
+                        rows[n++] = row;
+                    }
+                }
+            } else {
+                long[] words = (long[]) o;
+                for (int k = 0; k < WORDS; k++) {
+                    long w = words[k];
+                    while (w != 0) {
+                        int row = base | k << 6 | Long.numberOfTrailingZeros(w);
+                        if (row >= from && row < to) {
+                            rows[n++] = row;
+                        }
+                        w &= w - 1;
+                    }
+                }
+            }
+        }
+        return n == count ? rows : Arrays.copyOf(rows, n);
+    }
+
+    /** Whether a block may hold rows from {@code from} to {@code to}. */
+    private boolean inRange(int block, int from, int to) {
+        int base = mKeys[block] << BLOCK_SHIFT;
+        return base < to && base + BLOCK_MASK >= from;
+    }
+}
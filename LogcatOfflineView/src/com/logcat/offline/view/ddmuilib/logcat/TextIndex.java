@@ -0,0 +1,352 @@
+package com.logcat.offline.view.ddmuilib.logcat;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A trigram index of the texts of a {@link LogStore}, to look for a regex only in the rows that
+ * may match it. The rows are indexed by blocks of {@link #BLOCK_ROWS}: every 3 bytes found in the
+ * texts of a block, ASCII letters folded to lower case, point to the block. A regex that needs
+ * some literal strings (see {@link #getLiterals(String)}) can then only match in the blocks that
+ * have all their trigrams.
+ * <p/>
+ * The trigrams are hashed into a fixed number of buckets, each a {@link RowBitmap} of block
+ * numbers: two trigrams sharing a bucket only make more blocks look through.
+ * <p/>
+ * The index is built by a background thread, block after block, and catches up with the store
+ * when {@link #update()} is called. The rows not indexed yet are always candidates.
+ */
+final class TextIndex {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BLOCK_SHIFT = 7;
+    /** Number of rows of a block. */
+    static final int BLOCK_ROWS = 1 << BLOCK_SHIFT;
+    private static final int BUCKET_BITS = 18;
+
+    /** Stores with fewer rows are quickly looked through, they get no index. */
+    static final int MIN_ROWS = 64 * 1024;
+
+    private final LogStore mStore;
+    /** Blocks with the trigrams of each bucket. */
+    private final RowBitmap[] mBuckets = new RowBitmap[1 << BUCKET_BITS];
+    /** Number of blocks indexed. */
+    private int mBlocks;
+    private boolean mBuilding;
+
+    TextIndex(LogStore store) {
+        mStore = store;
+    }
+
+    /** Index the full blocks of rows appended to the store since the last update, in the background. */
+    synchronized void update() {
+        if (mBuilding || mBlocks >= mStore.size() >> BLOCK_SHIFT) {
+            return;
+        }
+        mBuilding = true;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                build();
+            }
+        });
+        t.setName("Indexing log texts..");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    private void build() {
+        // the bucket of each trigram is marked with the block it was last seen in
+        int[] marks = new int[1 << BUCKET_BITS];
+        int[] buckets = new int[1024];
+        byte[] text = new byte[1024];
+        while (true) {
+            int block;
+            synchronized (this) {
+                block = mBlocks;
+                if (block >= mStore.size() >> BLOCK_SHIFT) {
+                    mBuilding = false;
+                    return;
+                }
+            }
+            int count = 0;
+            int end = (block + 1) << BLOCK_SHIFT;
+            for (int row = block << BLOCK_SHIFT; row < end; row++) {
+                int len = mStore.getMessageLength(row);
+                if (len > text.length) {
+                    text = new byte[Math.max(len, text.length * 2)];
+                }
+                mStore.getMessageBytes(row, text);
+                int t = len >= 2 ? fold(text[0]) << 8 | fold(text[1]) : 0;
+                for (int i = 2; i < len; i++) {
+                    t = (t << 8 | fold(text[i])) & 0xFFFFFF;
+                    int bucket = getBucket(t);
+                    if (marks[bucket] != block + 1) {
+                        marks[bucket] = block + 1;
+                        if (count == buckets.length) {
+                            buckets = Arrays.copyOf(buckets, count * 2);
+                        }
+                        buckets[count++] = bucket;
+                    }
+                }
+            }
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    RowBitmap b = mBuckets[buckets[i]];
+                    if (b == null) {
+                        b = new RowBitmap();
+                        mBuckets[buckets[i]] = b;
+                    }
+                    b.add(block);
+                }
+                mBlocks = block + 1;
+            }
+        }
+    }
+
+    private static int fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+    }
+
+    private static int getBucket(int trigram) {
+        return (trigram * 0x9E3779B1) >>> (32 - BUCKET_BITS);
+    }
+
+    /**
+     * Find the rows whose texts may contain all the given strings.
+     * @param literals strings the texts must contain, whatever the case of their ASCII letters
+     * @return the candidate rows from {@code from} to {@code to}, null if the strings are too short
+     * for the index to tell.
+     */
+    synchronized RowBitmap getCandidateRows(List<String> literals, int from, int to) {
+        List<RowBitmap> blocks = new ArrayList<RowBitmap>();
+        for (String literal : literals) {
+            byte[] bytes = literal.getBytes(UTF8);
+            for (int i = 2; i < bytes.length; i++) {
+                int t = fold(bytes[i - 2]) << 16 | fold(bytes[i - 1]) << 8 | fold(bytes[i]);
+                RowBitmap b = mBuckets[getBucket(t)];
+                if (b == null) {
+                    // no indexed block has the trigram
+                    b = new RowBitmap();
+                }
+                if (!blocks.contains(b)) {
+                    blocks.add(b);
+                }
+            }
+        }
+        if (blocks.isEmpty()) {
+            return null;
+        }
+
+        // intersect the smallest bitmaps first
+        RowBitmap[] sorted = blocks.toArray(new RowBitmap[blocks.size()]);
+        int[] sizes = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sizes[i] = sorted[i].cardinality();
+        }
+        for (int i = 1; i < sorted.length; i++) {
+            for (int j = i; j > 0 && sizes[j] < sizes[j - 1]; j--) {
+                int s = sizes[j];
+                sizes[j] = sizes[j - 1];
+                sizes[j - 1] = s;
+                RowBitmap b = sorted[j];
+                sorted[j] = sorted[j - 1];
+                sorted[j - 1] = b;
+            }
+        }
+        int indexedRows = mBlocks << BLOCK_SHIFT;
+        int lastBlock = (Math.min(to, indexedRows) + BLOCK_ROWS - 1) >> BLOCK_SHIFT;
+        RowBitmap candidates = RowBitmap.or(Arrays.asList(sorted[0]), from >> BLOCK_SHIFT, lastBlock);
+        for (int i = 1; i < sorted.length && !candidates.isEmpty(); i++) {
+            candidates = candidates.and(sorted[i]);
+        }
+
+        RowBitmap rows = new RowBitmap();
+        for (int block : candidates.toArray(from >> BLOCK_SHIFT, lastBlock)) {
+            int end = Math.min(to, (block + 1) << BLOCK_SHIFT);
+            for (int row = Math.max(from, block << BLOCK_SHIFT); row < end; row++) {
+                rows.add(row);
+            }
+        }
+        for (int row = Math.max(from, indexedRows); row < to; row++) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Find strings any text matching a regex must contain. The regex is only looked at
+     * conservatively: the strings come from the parts outside of groups and character classes,
+     * and a regex with a top-level alternation or inline flags gives none.
+     * @return the strings, empty if the regex tells nothing.
+     */
+    static List<String> getLiterals(String regex) {
+        List<String> literals = new ArrayList<String>();
+        if (regex.contains("(?")) {
+            return literals;
+        }
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int len = regex.length();
+        for (int i = 0; i < len; i++) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (i + 1 == len) {
+                        break;
+                    }
+                    char e = regex.charAt(++i);
+                    if (Character.isLetterOrDigit(e)) {
+                        // a class, a boundary, a char by its code or a quoted sequence, no literal
+                        endRun(run, literals);
+                        i = skipEscape(regex, i);
+                        if (i < 0) {
+                            // a back reference, or an escape not understood
+                            literals.clear();
+                            return literals;
+                        }
+                    } else if (depth == 0) {
+                        run.append(e);
+                    }
+                    break;
+                case '[':
+                    endRun(run, literals);
+                    i = skipClass(regex, i);
+                    break;
+                case '(':
+                    depth++;
+                    endRun(run, literals);
+                    break;
+                case ')':
+                    depth--;
+                    endRun(run, literals);
+                    break;
+                case '|':
+                    if (depth == 0) {
+                        literals.clear();
+                        return literals;
+                    }
+                    break;
+                case '*':
+                case '?':
+                case '{':
+                    // the last char may be missing
+                    dropLast(run);
+                    endRun(run, literals);
+                    if (c == '{') {
+                        int end = regex.indexOf('}', i);
+                        i = end < 0 ? len : end;
+                    }
+                    break;
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                    endRun(run, literals);
+                    break;
+                default:
+                    if (depth == 0) {
+                        run.append(c);
+                    }
+            }
+        }
+        endRun(run, literals);
+        return literals;
+    }
+
+    private static void endRun(StringBuilder run, List<String> literals) {
+        if (run.length() > 0) {
+            // a char that was not valid UTF-8 in the log is not in the index as such
+            if (run.indexOf("\uFFFD") < 0) {
+                literals.add(run.toString());
+            }
+            run.setLength(0);
+        }
+    }
+
+    private static void dropLast(StringBuilder run) {
+        int n = run.length();
+        if (n == 0) {
+            return;
+        }
+        run.setLength(n > 1 && Character.isLowSurrogate(run.charAt(n - 1))
+                && Character.isHighSurrogate(run.charAt(n - 2)) ? n - 2 : n - 1);
+    }
+
+    /**
+     * Index of the last char of an escape, given the index of its letter or digit.
+     * @return the index, or -1 if the escape may be a back reference or is malformed.
+     */
+    private static int skipEscape(String regex, int i) {
+        int len = regex.length();
+        switch (regex.charAt(i)) {
+            case 'Q':
+                int end = regex.indexOf("\\E", i);
+                return end < 0 ? len : end + 1;
+            case 'x':
+                if (i + 1 < len && regex.charAt(i + 1) == '{') {
+                    return skipTo(regex, i + 1, '}');
+                }
+                return i + 2 < len ? i + 2 : -1;
+            case 'u':
+                return i + 4 < len ? i + 4 : -1;
+            case '0':
+                // up to 3 octal digits, the first one at most 3 if there are 3
+                int n = 0;
+                while (n < 3 && i + n + 1 < len && regex.charAt(i + n + 1) >= '0'
+                        && regex.charAt(i + n + 1) <= '7') {
+                    n++;
+                }
+                if (n == 3 && regex.charAt(i + 1) > '3') {
+                    n = 2;
+                }
+                return n > 0 ? i + n : -1;
+            case 'c':
+                return i + 1 < len ? i + 1 : -1;
+            case 'k':
+                return i + 1 < len && regex.charAt(i + 1) == '<' ? skipTo(regex, i + 1, '>') : -1;
+            case 'p':
+            case 'P':
+            case 'N':
+                if (i + 1 < len && regex.charAt(i + 1) == '{') {
+                    return skipTo(regex, i + 1, '}');
+                }
+                return i + 1 < len ? i + 1 : -1;
+            default:
+                // single letters, digits are back references
+                return Character.isDigit(regex.charAt(i)) ? -1 : i;
+        }
+    }
+
+    /** Index of the given char after {@code start}, or -1 if there is none. */
+    private static int skipTo(String regex, int start, char c) {
+        return regex.indexOf(c, start + 1);
+    }
+
+    /** Index of the ']' closing a character class starting at the given '['. */
+    private static int skipClass(String regex, int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            // a ']' first is part of the class
+            i++;
+        }
+        int depth = 1;
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return i;
+            }
+        }
+        return regex.length();
+    }
+}